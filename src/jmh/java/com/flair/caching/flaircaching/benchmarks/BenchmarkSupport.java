@@ -0,0 +1,119 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.config.RocksDbProperties;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import com.flair.caching.flaircaching.repositories.CacheRepository;
+import com.flair.caching.flaircaching.repositories.ResultCompression;
+import com.flair.caching.flaircaching.services.CacheRefresher;
+import com.flair.caching.flaircaching.services.CacheService;
+import com.flair.caching.flaircaching.services.CountAggregator;
+import com.flair.caching.flaircaching.services.HotCache;
+import com.flair.caching.flaircaching.services.RefreshLeases;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Wires the cache without spring, every trial starts from an empty rocksdb directory.
+ */
+final class BenchmarkSupport {
+
+    static final String TABLE = "benchmark";
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private BenchmarkSupport() {
+    }
+
+    static CacheRepository openRepository(MeterRegistry meterRegistry) throws IOException, RocksDBException {
+        // the default path of the repository is "cache" in the working directory
+        FileUtils.deleteDirectory(new File("cache"));
+        CacheRepository cacheRepository = new CacheRepository(new RocksDbProperties(), meterRegistry);
+        cacheRepository.init();
+        return cacheRepository;
+    }
+
+    static Cache openCache(CacheProperties cacheProperties) throws IOException, RocksDBException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CacheRepository cacheRepository = openRepository(meterRegistry);
+        CountAggregator countAggregator = new CountAggregator(cacheRepository, cacheProperties, meterRegistry);
+        CacheRefresher cacheRefresher = new CacheRefresher(Optional.empty(), cacheProperties, meterRegistry);
+        CacheService cacheService = new CacheService(cacheRepository, new HotCache(cacheProperties, meterRegistry),
+                countAggregator, new RefreshLeases(cacheProperties, meterRegistry), cacheRefresher, cacheProperties,
+                Clock.systemUTC(), meterRegistry);
+        return new Cache(cacheRepository, countAggregator, cacheRefresher, cacheService, meterRegistry);
+    }
+
+    static byte[] value(int size) {
+        // json-like so compression behaves as it does for real results
+        StringBuilder value = new StringBuilder(size);
+        Random random = new Random(size);
+        while (value.length() < size) {
+            value.append("{\"id\":").append(random.nextInt(100_000)).append(",\"name\":\"value\"},");
+        }
+        return value.substring(0, size).getBytes();
+    }
+
+    static String key(int index) {
+        return "key" + index;
+    }
+
+    static void load(CacheRepository cacheRepository, int keyCount, byte[] value, long purgeAfterDate,
+                     int refreshAfterCount) {
+        List<CachePutEntry> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        for (int i = 0; i < keyCount; i++) {
+            batch.add(putEntry(key(i), value, purgeAfterDate, refreshAfterCount));
+            if (batch.size() == LOAD_BATCH_SIZE) {
+                cacheRepository.putResults(batch, 0L);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            cacheRepository.putResults(batch, 0L);
+        }
+    }
+
+    static CachePutEntry putEntry(String key, byte[] value, long purgeAfterDate, int refreshAfterCount) {
+        return new CachePutEntry()
+                .setTable(TABLE)
+                .setKey(key)
+                .setValue(value)
+                .setRefreshAfterDate(0L)
+                .setPurgeAfterDate(purgeAfterDate)
+                .setRefreshAfterCount(refreshAfterCount)
+                .setCompression(ResultCompression.NONE);
+    }
+
+    static final class Cache {
+        final CacheRepository cacheRepository;
+        final CountAggregator countAggregator;
+        final CacheRefresher cacheRefresher;
+        final CacheService cacheService;
+        final MeterRegistry meterRegistry;
+
+        private Cache(CacheRepository cacheRepository, CountAggregator countAggregator, CacheRefresher cacheRefresher,
+                      CacheService cacheService, MeterRegistry meterRegistry) {
+            this.cacheRepository = cacheRepository;
+            this.countAggregator = countAggregator;
+            this.cacheRefresher = cacheRefresher;
+            this.cacheService = cacheService;
+            this.meterRegistry = meterRegistry;
+        }
+
+        void close() {
+            cacheRefresher.shutdown();
+            countAggregator.shutdown();
+            cacheRepository.shutdown();
+        }
+    }
+}
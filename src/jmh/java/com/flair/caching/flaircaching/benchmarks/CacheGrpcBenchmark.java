@@ -0,0 +1,110 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import com.flair.bi.messages.CacheServiceGrpc;
+import com.flair.bi.messages.GetCacheRequest;
+import com.flair.bi.messages.GetCacheResponse;
+import com.flair.bi.messages.PutCacheRequest;
+import com.flair.bi.messages.PutCacheResponse;
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.controllers.CacheGrpcController;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unary calls through an in-process server, including request and response marshalling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheGrpcBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    int valueSize;
+
+    @Param({KeyDistribution.UNIFORM, KeyDistribution.ZIPFIAN})
+    String keyDistribution;
+
+    @Param({"100000"})
+    int keyCount;
+
+    private BenchmarkSupport.Cache cache;
+    private CacheGrpcController controller;
+    private Server server;
+    private ManagedChannel channel;
+    private CacheServiceGrpc.CacheServiceBlockingStub stub;
+    private ByteString value;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        KeyDistribution keys;
+
+        @Setup
+        public void setUp(CacheGrpcBenchmark benchmark) {
+            keys = KeyDistribution.of(benchmark.keyDistribution, benchmark.keyCount, Thread.currentThread().getId());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        cache = BenchmarkSupport.openCache(cacheProperties);
+        byte[] bytes = BenchmarkSupport.value(valueSize);
+        BenchmarkSupport.load(cache.cacheRepository, keyCount, bytes, 0, 0);
+        value = ByteString.copyFrom(bytes);
+
+        String serverName = InProcessServerBuilder.generateName();
+        controller = new CacheGrpcController(cache.cacheService, cacheProperties, cache.meterRegistry);
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(controller)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+        stub = CacheServiceGrpc.newBlockingStub(channel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        controller.shutdown();
+        cache.close();
+    }
+
+    @Benchmark
+    public GetCacheResponse getCache(Keys keys) {
+        return stub.getCache(GetCacheRequest.newBuilder()
+                .setTable(BenchmarkSupport.TABLE)
+                .setKey(BenchmarkSupport.key(keys.keys.next()))
+                .build());
+    }
+
+    @Benchmark
+    public PutCacheResponse putCache(Keys keys) {
+        return stub.putCache(PutCacheRequest.newBuilder()
+                .setTable(BenchmarkSupport.TABLE)
+                .setKey(BenchmarkSupport.key(keys.keys.next()))
+                .setValueBytes(value)
+                .build());
+    }
+}
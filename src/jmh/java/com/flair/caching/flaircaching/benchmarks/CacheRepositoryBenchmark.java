@@ -0,0 +1,77 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import com.flair.caching.flaircaching.repositories.CacheEntry;
+import com.flair.caching.flaircaching.repositories.CacheEntryResult;
+import com.flair.caching.flaircaching.repositories.CacheRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheRepositoryBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    int valueSize;
+
+    @Param({KeyDistribution.UNIFORM, KeyDistribution.ZIPFIAN})
+    String keyDistribution;
+
+    @Param({"100000"})
+    int keyCount;
+
+    private CacheRepository cacheRepository;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        KeyDistribution keys;
+
+        @Setup
+        public void setUp(CacheRepositoryBenchmark benchmark) {
+            keys = KeyDistribution.of(benchmark.keyDistribution, benchmark.keyCount, Thread.currentThread().getId());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cacheRepository = BenchmarkSupport.openRepository(new SimpleMeterRegistry());
+        value = BenchmarkSupport.value(valueSize);
+        BenchmarkSupport.load(cacheRepository, keyCount, value, 0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheRepository.shutdown();
+    }
+
+    @Benchmark
+    public CacheEntryResult getResult(Keys keys) {
+        return cacheRepository.getResult(BenchmarkSupport.TABLE, BenchmarkSupport.key(keys.keys.next()));
+    }
+
+    @Benchmark
+    public List<CacheEntry> putResult(Keys keys) {
+        return cacheRepository.putResults(Collections.singletonList(
+                BenchmarkSupport.putEntry(BenchmarkSupport.key(keys.keys.next()), value, 0, 0)), 0L);
+    }
+}
@@ -0,0 +1,77 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets through the hot tier and read counting, a refresh after count of 0 skips the counting.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheServiceBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    int valueSize;
+
+    @Param({KeyDistribution.UNIFORM, KeyDistribution.ZIPFIAN})
+    String keyDistribution;
+
+    @Param({"100000"})
+    int keyCount;
+
+    @Param({"0", "1000000000"})
+    int refreshAfterCount;
+
+    @Param({"true", "false"})
+    boolean hotTier;
+
+    private BenchmarkSupport.Cache cache;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        KeyDistribution keys;
+
+        @Setup
+        public void setUp(CacheServiceBenchmark benchmark) {
+            keys = KeyDistribution.of(benchmark.keyDistribution, benchmark.keyCount, Thread.currentThread().getId());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.getHotTier().setEnabled(hotTier);
+        cache = BenchmarkSupport.openCache(cacheProperties);
+        BenchmarkSupport.load(cache.cacheRepository, keyCount, BenchmarkSupport.value(valueSize), 0, refreshAfterCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public Optional<CacheEntryWrapper> getResult(Keys keys) {
+        return cache.cacheService.getResult(BenchmarkSupport.TABLE, BenchmarkSupport.key(keys.keys.next()));
+    }
+}
@@ -0,0 +1,67 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Precomputed sequence of key indexes, so drawing a key costs the same for every distribution.
+ */
+final class KeyDistribution {
+
+    static final String UNIFORM = "uniform";
+    static final String ZIPFIAN = "zipfian";
+
+    private static final int SAMPLES = 1 << 20;
+    private static final double ZIPFIAN_EXPONENT = 0.99;
+
+    private final int[] indexes;
+    private int position;
+
+    private KeyDistribution(int[] indexes) {
+        this.indexes = indexes;
+    }
+
+    static KeyDistribution of(String distribution, int keyCount, long seed) {
+        Random random = new Random(seed);
+        int[] indexes = new int[SAMPLES];
+        switch (distribution) {
+            case UNIFORM:
+                for (int i = 0; i < SAMPLES; i++) {
+                    indexes[i] = random.nextInt(keyCount);
+                }
+                break;
+            case ZIPFIAN:
+                double[] cumulative = zipfianCumulative(keyCount);
+                for (int i = 0; i < SAMPLES; i++) {
+                    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+                    indexes[i] = Math.min(index < 0 ? -index - 1 : index, keyCount - 1);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown key distribution " + distribution);
+        }
+        return new KeyDistribution(indexes);
+    }
+
+    private static double[] zipfianCumulative(int keyCount) {
+        double[] cumulative = new double[keyCount];
+        double sum = 0;
+        for (int i = 0; i < keyCount; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPFIAN_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < keyCount; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Not thread safe, each benchmark thread keeps its own instance.
+     */
+    int next() {
+        int index = indexes[position];
+        position = (position + 1) & (SAMPLES - 1);
+        return index;
+    }
+}
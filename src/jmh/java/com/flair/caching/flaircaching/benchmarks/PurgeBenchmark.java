@@ -0,0 +1,54 @@
+package com.flair.caching.flaircaching.benchmarks;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full purge of a cache where every entry has expired, the cache is rebuilt before each iteration.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurgeBenchmark {
+
+    @Param({"1000000"})
+    int keyCount;
+
+    @Param({"128"})
+    int valueSize;
+
+    private BenchmarkSupport.Cache cache;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        cache = BenchmarkSupport.openCache(new CacheProperties());
+        BenchmarkSupport.load(cache.cacheRepository, keyCount, BenchmarkSupport.value(valueSize), 1, 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public void purge() {
+        cache.cacheService.purge();
+    }
+}
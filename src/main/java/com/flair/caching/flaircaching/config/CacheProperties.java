@@ -0,0 +1,107 @@
+package com.flair.caching.flaircaching.config;
+
+import com.flair.caching.flaircaching.repositories.ResultCompression;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@ConfigurationProperties(prefix = "cache", ignoreUnknownFields = false)
+@Component
+@Data
+public class CacheProperties {
+
+    private HotTier hotTier = new HotTier();
+    private Purge purge = new Purge();
+    private Stream stream = new Stream();
+    private Counts counts = new Counts();
+    private Compression compression = new Compression();
+    private Chunks chunks = new Chunks();
+    private Executor executor = new Executor();
+    private Refresh refresh = new Refresh();
+    private Loader loader = new Loader();
+    private Metrics metrics = new Metrics();
+
+    @Data
+    public static class HotTier {
+        private boolean enabled = true;
+        private long maxBytes = 64 * 1024 * 1024;
+        private boolean offHeap;
+    }
+
+    @Data
+    public static class Purge {
+        private long intervalMillis = 3_600_000;
+        private int batchSize = 1000;
+        private double maxDeletesPerSecond;
+    }
+
+    @Data
+    public static class Stream {
+        private long flushWindowMillis = 2;
+        private int maxBatchSize = 256;
+        private int threads = 4;
+    }
+
+    @Data
+    public static class Counts {
+        private long flushIntervalMillis = 100;
+    }
+
+    @Data
+    public static class Compression {
+        private ResultCompression codec = ResultCompression.LZ4;
+        private int minBytes = 1024;
+        private Map<String, ResultCompression> tables = new HashMap<>();
+    }
+
+    @Data
+    public static class Chunks {
+        private int chunkSize = 1024 * 1024;
+    }
+
+    @Data
+    public static class Executor {
+        private int threads = 16;
+        private int queueSize = 1024;
+    }
+
+    /**
+     * Entries are offered for refresh to one caller once they are within the last ahead-ratio of their
+     * refresh interval or read count, the lease of that caller ends after lease-millis.
+     */
+    @Data
+    public static class Refresh {
+        private double aheadRatio = 0.1;
+        private long leaseMillis = 60_000;
+    }
+
+    /**
+     * Entries due for a refresh are loaded from the backend at target, instead of leaving the refresh to
+     * a caller. Max-loads-per-second applies per table, 0 is unlimited, tables override it per table.
+     * Tables past the metrics max-tables share one limit, unless configured in tables.
+     */
+    @Data
+    public static class Loader {
+        private boolean enabled;
+        private String target;
+        private boolean tls;
+        private long timeoutMillis = 30_000;
+        private int threads = 4;
+        private int queueSize = 256;
+        private double maxLoadsPerSecond;
+        private Map<String, Double> tables = new HashMap<>();
+    }
+
+    /**
+     * Metrics are tagged by table for the first max-tables tables seen, later tables share the tag
+     * {@code other}, so unknown client tables cannot grow the number of meters without bound.
+     */
+    @Data
+    public static class Metrics {
+        private int maxTables = 100;
+    }
+
+}
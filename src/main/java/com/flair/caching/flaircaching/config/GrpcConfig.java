@@ -25,6 +25,9 @@ public class GrpcConfig extends GRpcServerBuilderConfigurer {
     @Override
     public void configure(ServerBuilder<?> serverBuilder) {
         log.info("Grpc config: Configuring grpc {}", grpcProperties.getTls());
+        if (grpcProperties.isDirectExecutor()) {
+            serverBuilder.directExecutor();
+        }
         if (grpcProperties.getTls().isEnabled()) {
             NettyServerBuilder nsb = (NettyServerBuilder) serverBuilder;
             try {
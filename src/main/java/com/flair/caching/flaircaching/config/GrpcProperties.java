@@ -12,6 +12,11 @@ public class GrpcProperties {
     private Tls tls = new Tls();
     private Long port;
     private boolean enabled;
+    /**
+     * Run calls on the transport threads. Only safe when every service hands blocking work off, as the cache
+     * service does with the cache executor, so it is off by default.
+     */
+    private boolean directExecutor;
 
     @Data
     public static class Tls {
@@ -0,0 +1,178 @@
+package com.flair.caching.flaircaching.config;
+
+import com.flair.caching.flaircaching.repositories.CacheRepository;
+import com.flair.caching.flaircaching.repositories.KeyDigest;
+import lombok.Data;
+import org.rocksdb.CompressionType;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@ConfigurationProperties(prefix = "rocksdb", ignoreUnknownFields = false)
+@Component
+@Data
+public class RocksDbProperties {
+
+    /**
+     * Directory of the db, relative to the working directory unless absolute.
+     */
+    private String path = "cache";
+
+    /**
+     * Directory of the write ahead log, empty keeps it in the db directory. A disk of its own keeps log
+     * writes clear of compaction io.
+     */
+    private String walDir = "";
+
+    /**
+     * Directories of the table files, empty keeps them in the db directory. Each is filled up to its target
+     * size before table files go to the next one, the last one takes the rest. Newer data sits in the smaller
+     * upper levels, so fast disks go first. Directories holding table files of the db cannot be removed, and
+     * checkpoints cannot be enabled with db paths.
+     */
+    private List<DbPathOptions> dbPaths = new ArrayList<>();
+
+    /**
+     * Records older than this are dropped by compaction, 0 disables it.
+     * Changes the on disk format, so it can only be switched on a new cache directory.
+     */
+    private int ttlSeconds;
+
+    /**
+     * Collects rocksdb statistics for the metrics endpoint, costs a few percent of throughput.
+     */
+    private boolean statistics = true;
+
+    /**
+     * Table options by column family name, families without an entry use the defaults of {@link TableOptions}.
+     */
+    private Map<String, TableOptions> columnFamilies = new HashMap<>();
+
+    /**
+     * Tables stored in column families of their own, by table name. The families of a table are created on its
+     * first use and can be dropped as a whole. The table options apply to the entries family of the table, its
+     * other families use the options of the shared family of the same kind. Families of the same kind share
+     * one block cache, sized by the shared family.
+     */
+    private Map<String, TableOptions> tables = new HashMap<>();
+
+    /**
+     * Keys of at least this many utf-8 bytes are stored under a digest, the key itself is kept once in the entry
+     * to verify reads against. 0 stores all keys as they are. Entries whose stored key changes with a new
+     * setting are misses until they are purged.
+     */
+    private int keyDigestMinLength;
+
+    private KeyDigest keyDigest = KeyDigest.MURMUR3_128;
+
+    /**
+     * A lost write is a miss for a cache, so by default the write ahead log is not synced on every write.
+     */
+    private Durability durability = Durability.ASYNC_WAL;
+
+    /**
+     * The write ahead log is synced in the background whenever this many bytes were written, 0 leaves it to the os.
+     */
+    private long walBytesPerSync;
+
+    private WriteBehind writeBehind = new WriteBehind();
+
+    private Checkpoints checkpoints = new Checkpoints();
+
+    public TableOptions getTableOptions(String columnFamily) {
+        return columnFamilies.getOrDefault(columnFamily, new TableOptions());
+    }
+
+    /**
+     * @return the options of a family of a table stored in column families of its own
+     */
+    public TableOptions getTableOptions(String columnFamily, String table) {
+        if (CacheRepository.COL_ENTRIES.equals(columnFamily) && tables.containsKey(table)) {
+            return tables.get(table);
+        }
+        return getTableOptions(columnFamily);
+    }
+
+    public enum Durability {
+        /**
+         * Every write waits for the write ahead log to be synced.
+         */
+        SYNC,
+        /**
+         * Writes go to the write ahead log without waiting for a sync, a machine crash loses the last writes.
+         */
+        ASYNC_WAL,
+        /**
+         * Writes skip the write ahead log, a crash loses everything not yet flushed from the memtables.
+         */
+        NO_WAL
+    }
+
+    /**
+     * Puts are acknowledged once buffered and written as one batch per flush interval, or once the buffer
+     * holds max-bytes. Reads see buffered puts, a crash loses them.
+     */
+    @Data
+    public static class WriteBehind {
+        private boolean enabled;
+        private long flushIntervalMillis = 5;
+        private long maxBytes = 8 * 1024 * 1024;
+    }
+
+    @Data
+    public static class DbPathOptions {
+        private String path;
+        private long targetSize;
+    }
+
+    /**
+     * Checkpoints of the db are created in dir every interval-millis, keeping the latest retained ones.
+     * With restore, a missing or empty cache directory is filled from the latest checkpoint on startup.
+     */
+    @Data
+    public static class Checkpoints {
+        private boolean enabled;
+        private String dir = "checkpoints";
+        private long intervalMillis = 3_600_000;
+        private int retained = 2;
+        private boolean restore = true;
+    }
+
+    /**
+     * Defaults are tuned for point lookups.
+     */
+    @Data
+    public static class TableOptions {
+        /**
+         * LRU block cache of the column family, 0 disables the block cache. Ignored for the families of
+         * tables stored on their own other than to disable the cache.
+         */
+        private long blockCacheSize = 32 * 1024 * 1024;
+        private long blockSize = 16 * 1024;
+        /**
+         * Bloom filter bits per key, 0 disables the filter.
+         */
+        private int bloomBitsPerKey = 10;
+        private boolean cacheIndexAndFilterBlocks = true;
+        private boolean pinL0FilterAndIndexBlocksInCache = true;
+        /**
+         * Length of the fixed key prefix the bloom filter is built on, 0 filters on whole keys. Keys of the
+         * entries and counts start with the 4 byte id of their table.
+         */
+        private int prefixLength;
+        /**
+         * Compression by level, empty keeps the compression of the column family.
+         */
+        private List<CompressionType> compressionPerLevel = new ArrayList<>();
+        private long writeBufferSize = 64 * 1024 * 1024;
+        /**
+         * Records older than this are dropped by compaction when the db runs with a ttl, 0 uses {@code ttlSeconds}.
+         */
+        private int ttlSeconds;
+    }
+
+}
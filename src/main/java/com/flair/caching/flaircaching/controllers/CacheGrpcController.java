@@ -1,84 +1,412 @@
 package com.flair.caching.flaircaching.controllers;
 
 import com.flair.bi.messages.CacheMetadata;
+import com.flair.bi.messages.CacheResultStatus;
 import com.flair.bi.messages.CacheServiceGrpc;
+import com.flair.bi.messages.CacheStreamRequest;
+import com.flair.bi.messages.CacheStreamResponse;
+import com.flair.bi.messages.CreateCheckpointRequest;
+import com.flair.bi.messages.CreateCheckpointResponse;
+import com.flair.bi.messages.DropTableRequest;
+import com.flair.bi.messages.DropTableResponse;
+import com.flair.bi.messages.GetCacheBatchRequest;
+import com.flair.bi.messages.GetCacheBatchResponse;
+import com.flair.bi.messages.GetCacheBatchResult;
+import com.flair.bi.messages.GetCacheChunk;
 import com.flair.bi.messages.GetCacheRequest;
 import com.flair.bi.messages.GetCacheResponse;
+import com.flair.bi.messages.InvalidateTableRequest;
+import com.flair.bi.messages.InvalidateTableResponse;
+import com.flair.bi.messages.PutCacheBatchRequest;
+import com.flair.bi.messages.PutCacheBatchResponse;
+import com.flair.bi.messages.PutCacheChunk;
 import com.flair.bi.messages.PutCacheRequest;
 import com.flair.bi.messages.PutCacheResponse;
+import com.flair.caching.flaircaching.config.CacheProperties;
 import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
 import com.flair.caching.flaircaching.services.CacheService;
+import com.flair.caching.flaircaching.utils.TableTags;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.lognet.springboot.grpc.GRpcService;
 
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @GRpcService
 @Slf4j
-@RequiredArgsConstructor
 public class CacheGrpcController extends CacheServiceGrpc.CacheServiceImplBase {
 
+    static final Status BUSY = Status.RESOURCE_EXHAUSTED.withDescription("errors.cache.busy");
+
     private final CacheService cacheService;
+    private final CacheProperties.Stream streamProperties;
+    private final int chunkSize;
+    private final MeterRegistry meterRegistry;
+    private final TableTags tableTags;
+    // by method, table tag and status
+    private final ConcurrentMap<List<Object>, Timer> rpcTimers = new ConcurrentHashMap<>();
+    // by method
+    private final ConcurrentMap<String, Counter> rejectedCounters = new ConcurrentHashMap<>();
+    // flush windows of the cache streams, the batches themselves run on the io executor
+    private final ScheduledExecutorService streamScheduler;
+    private final ExecutorService ioExecutor;
+
+    public CacheGrpcController(CacheService cacheService, CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.cacheService = cacheService;
+        this.meterRegistry = meterRegistry;
+        this.streamProperties = cacheProperties.getStream();
+        this.chunkSize = cacheProperties.getChunks().getChunkSize();
+        this.tableTags = new TableTags(cacheProperties.getMetrics().getMaxTables());
+        this.streamScheduler = Executors.newScheduledThreadPool(streamProperties.getThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("cache-stream-%d")
+                .setDaemon(true)
+                .build());
+
+        CacheProperties.Executor executorProperties = cacheProperties.getExecutor();
+        this.ioExecutor = ExecutorServiceMetrics.monitor(meterRegistry, new ThreadPoolExecutor(
+                executorProperties.getThreads(), executorProperties.getThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(executorProperties.getQueueSize()),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("cache-io-%d")
+                        .setDaemon(true)
+                        .build()), "cache.io");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        streamScheduler.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
 
     @Override
     public void getCache(GetCacheRequest request, StreamObserver<GetCacheResponse> responseObserver) {
-        if (StringUtils.isEmpty(request.getKey())) {
-            responseObserver.onError(Status.INVALID_ARGUMENT
-                    .withDescription("errors.cache.key.null")
-                    .asRuntimeException());
-            return;
+        executeTimed("getCache", request.getTable(), responseObserver, () -> {
+            checkValid(request.getTable(), request.getKey());
+
+            Optional<CacheEntryWrapper> cacheResult = cacheService.getResult(request.getTable(), request.getKey());
+
+            if (!cacheResult.isPresent()) {
+                throw Status.NOT_FOUND
+                        .withDescription("errors.cache.not_found")
+                        .asRuntimeException();
+            }
+            CacheEntryWrapper cacheMetadata = cacheResult.get();
+            if (cacheMetadata.getCacheEntry().getChunkedResult() != null) {
+                throw Status.FAILED_PRECONDITION
+                        .withDescription("errors.cache.chunked")
+                        .asRuntimeException();
+            }
+            return GetCacheResponse.newBuilder()
+                    .setResultBytes(toResultBytes(cacheMetadata))
+                    .setMetadata(toCacheMetadata(cacheMetadata))
+                    .build();
+        });
+    }
+
+    @Override
+    public void putCache(PutCacheRequest request, StreamObserver<PutCacheResponse> responseObserver) {
+        executeTimed("putCache", request.getTable(), responseObserver, () -> {
+            checkValid(request.getTable(), request.getKey());
+
+            cacheService.putResults(Collections.singletonList(toCachePutEntry(request)));
+
+            return PutCacheResponse.newBuilder().build();
+        });
+    }
+
+    private <T> void executeTimed(String method, String table, StreamObserver<T> responseObserver, Supplier<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        // tables of rejected requests are not tags worth keeping
+        execute(method, responseObserver, call, code -> sample.stop(rpcTimer(method,
+                code == Status.Code.INVALID_ARGUMENT ? TableTags.INVALID : tableTags.get(table), code)));
+    }
+
+    private <T> void execute(String method, StreamObserver<T> responseObserver, Supplier<T> call) {
+        execute(method, responseObserver, call, code -> {
+        });
+    }
+
+    /**
+     * Runs a unary call on the io executor, so the transport threads never wait on rocksdb. The call returns
+     * its response or throws a {@link StatusRuntimeException}, {@code completed} gets the status before the
+     * response is sent.
+     */
+    private <T> void execute(String method, StreamObserver<T> responseObserver, Supplier<T> call,
+                             Consumer<Status.Code> completed) {
+        try {
+            ioExecutor.execute(() -> {
+                if (((ServerCallStreamObserver<T>) responseObserver).isCancelled()) {
+                    completed.accept(Status.Code.CANCELLED);
+                    return;
+                }
+                T response;
+                try {
+                    response = call.get();
+                } catch (StatusRuntimeException e) {
+                    completed.accept(e.getStatus().getCode());
+                    responseObserver.onError(e);
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Error in {}", method, e);
+                    completed.accept(Status.Code.INTERNAL);
+                    responseObserver.onError(Status.INTERNAL
+                            .withDescription("errors.cache.internal")
+                            .withCause(e)
+                            .asRuntimeException());
+                    return;
+                }
+                completed.accept(Status.Code.OK);
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
+        } catch (RejectedExecutionException e) {
+            rejected(method);
+            completed.accept(Status.Code.RESOURCE_EXHAUSTED);
+            responseObserver.onError(BUSY.asRuntimeException());
         }
+    }
+
+    private void rejected(String method) {
+        rejectedCounters.computeIfAbsent(method, it -> Counter.builder("cache.io.rejected")
+                .tag("method", method)
+                .description("Calls rejected because the io executor queue was full")
+                .register(meterRegistry))
+                .increment();
+    }
+
+    private Timer rpcTimer(String method, String tableTag, Status.Code code) {
+        return rpcTimers.computeIfAbsent(Arrays.asList(method, tableTag, code), it -> Timer.builder("cache.rpc")
+                .tag("method", method)
+                .tag("table", tableTag)
+                .tag("status", code.name())
+                .description("Unary cache calls by status")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(meterRegistry));
+    }
+
+    @Override
+    public void getCacheBatch(GetCacheBatchRequest request, StreamObserver<GetCacheBatchResponse> responseObserver) {
+        execute("getCacheBatch", responseObserver, () -> {
+            for (GetCacheRequest getRequest : request.getRequestsList()) {
+                checkValid(getRequest.getTable(), getRequest.getKey());
+            }
+
+            List<CacheKey> cacheKeys = request.getRequestsList().stream()
+                    .map(it -> new CacheKey(it.getTable(), it.getKey()))
+                    .collect(Collectors.toList());
+
+            Map<CacheKey, Optional<CacheEntryWrapper>> cacheResults = cacheService.getResults(cacheKeys);
+
+            GetCacheBatchResponse.Builder response = GetCacheBatchResponse.newBuilder();
+            for (CacheKey cacheKey : cacheKeys) {
+                response.addResults(toBatchResult(cacheResults.get(cacheKey)));
+            }
+            return response.build();
+        });
+    }
+
+    @Override
+    public void putCacheBatch(PutCacheBatchRequest request, StreamObserver<PutCacheBatchResponse> responseObserver) {
+        execute("putCacheBatch", responseObserver, () -> {
+            for (PutCacheRequest putRequest : request.getRequestsList()) {
+                checkValid(putRequest.getTable(), putRequest.getKey());
+            }
+
+            cacheService.putResults(request.getRequestsList().stream()
+                    .map(CacheGrpcController::toCachePutEntry)
+                    .collect(Collectors.toList()));
 
-        if (StringUtils.isEmpty(request.getTable())) {
-            responseObserver.onError(Status.INVALID_ARGUMENT
-                    .withDescription("errors.cache.table.null")
-                    .asRuntimeException());
+            return PutCacheBatchResponse.newBuilder().build();
+        });
+    }
+
+    @Override
+    public StreamObserver<CacheStreamRequest> cacheStream(StreamObserver<CacheStreamResponse> responseObserver) {
+        return new CacheStreamObserver(cacheService, (ServerCallStreamObserver<CacheStreamResponse>) responseObserver,
+                ioExecutor, streamScheduler, () -> rejected("cacheStream"), streamProperties);
+    }
+
+    @Override
+    public void getCacheChunked(GetCacheRequest request, StreamObserver<GetCacheChunk> responseObserver) {
+        Status invalid = validate(request.getTable(), request.getKey());
+        if (invalid != null) {
+            responseObserver.onError(invalid.asRuntimeException());
             return;
         }
 
-        Optional<CacheEntryWrapper> cacheResult = cacheService.getResult(request.getTable(), request.getKey());
+        // the handlers can only be set before this method returns, the lookup happens on the io executor
+        ChunkedGetSender sender = new ChunkedGetSender((ServerCallStreamObserver<GetCacheChunk>) responseObserver,
+                ioExecutor, () -> rejected("getCacheChunked"), chunkSize);
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    Optional<CacheEntryWrapper> cacheResult = cacheService.getResult(request.getTable(), request.getKey());
 
-        if (cacheResult.isPresent()) {
-            CacheEntryWrapper cacheMetadata = cacheResult.get();
-            responseObserver.onNext(GetCacheResponse.newBuilder()
-                    .setResult(cacheMetadata.getCacheEntry().getResult())
-                    .setMetadata(CacheMetadata.newBuilder()
-                            .setDateCreated(cacheMetadata.getCacheEntry().getDateCreated())
-                            .setStale(cacheMetadata.isStale())
-                            .build())
-                    .build());
-            responseObserver.onCompleted();
-        } else {
-            responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("errors.cache.not_found")
-                    .asRuntimeException());
+                    if (cacheResult.isPresent()) {
+                        sender.start(cacheService, request.getTable(), request.getKey(), cacheResult.get(),
+                                toCacheMetadata(cacheResult.get()));
+                    } else {
+                        sender.fail(Status.NOT_FOUND.withDescription("errors.cache.not_found"));
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Error in getCacheChunked", e);
+                    sender.fail(Status.INTERNAL.withDescription("errors.cache.internal").withCause(e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sender.rejected();
         }
     }
 
     @Override
-    public void putCache(PutCacheRequest request, StreamObserver<PutCacheResponse> responseObserver) {
-        if (StringUtils.isEmpty(request.getKey())) {
-            responseObserver.onError(Status.INVALID_ARGUMENT
-                    .withDescription("errors.cache.key.null")
-                    .asRuntimeException());
-            return;
+    public StreamObserver<PutCacheChunk> putCacheChunked(StreamObserver<PutCacheResponse> responseObserver) {
+        return new ChunkedPutObserver(cacheService, (ServerCallStreamObserver<PutCacheResponse>) responseObserver,
+                ioExecutor, () -> rejected("putCacheChunked"));
+    }
+
+    @Override
+    public void dropTable(DropTableRequest request, StreamObserver<DropTableResponse> responseObserver) {
+        execute("dropTable", responseObserver, () -> {
+            if (StringUtils.isEmpty(request.getTable())) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("errors.cache.table.null")
+                        .asRuntimeException();
+            }
+            if (!cacheService.dropTable(request.getTable())) {
+                throw Status.FAILED_PRECONDITION
+                        .withDescription("errors.cache.table.shared")
+                        .asRuntimeException();
+            }
+            return DropTableResponse.newBuilder().build();
+        });
+    }
+
+    @Override
+    public void invalidateTable(InvalidateTableRequest request, StreamObserver<InvalidateTableResponse> responseObserver) {
+        execute("invalidateTable", responseObserver, () -> {
+            if (StringUtils.isEmpty(request.getTable())) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("errors.cache.table.null")
+                        .asRuntimeException();
+            }
+            long removed = cacheService.invalidate(request.getTable(), request.getKeyPrefix());
+            return InvalidateTableResponse.newBuilder()
+                    .setRemoved(removed)
+                    .build();
+        });
+    }
+
+    @Override
+    public void createCheckpoint(CreateCheckpointRequest request,
+                                 StreamObserver<CreateCheckpointResponse> responseObserver) {
+        execute("createCheckpoint", responseObserver, () -> {
+            Path checkpoint = cacheService.createCheckpoint()
+                    .orElseThrow(() -> Status.FAILED_PRECONDITION
+                            .withDescription("errors.cache.checkpoints.disabled")
+                            .asRuntimeException());
+            return CreateCheckpointResponse.newBuilder()
+                    .setPath(checkpoint.toString())
+                    .build();
+        });
+    }
+
+    static Status validate(String table, String key) {
+        if (StringUtils.isEmpty(key)) {
+            return Status.INVALID_ARGUMENT.withDescription("errors.cache.key.null");
         }
+        if (StringUtils.isEmpty(table)) {
+            return Status.INVALID_ARGUMENT.withDescription("errors.cache.table.null");
+        }
+        return null;
+    }
 
-        if (StringUtils.isEmpty(request.getTable())) {
-            responseObserver.onError(Status.INVALID_ARGUMENT
-                    .withDescription("errors.cache.table.null")
-                    .asRuntimeException());
-            return;
+    private static void checkValid(String table, String key) {
+        Status invalid = validate(table, key);
+        if (invalid != null) {
+            throw invalid.asRuntimeException();
         }
+    }
 
-        cacheService.putResult(request.getTable(), request.getKey(), request.getValue(),
-                request.getRefreshAfterDate(), request.getPurgeAfterDate(), request.getRefreshAfterCount());
+    static CachePutEntry toCachePutEntry(PutCacheRequest request) {
+        return new CachePutEntry()
+                .setTable(request.getTable())
+                .setKey(request.getKey())
+                .setValue(request.getValueBytes().toByteArray())
+                .setRefreshAfterDate(request.getRefreshAfterDate())
+                .setPurgeAfterDate(request.getPurgeAfterDate())
+                .setRefreshAfterCount(request.getRefreshAfterCount())
+                .setRefreshToken(request.getRefreshToken());
+    }
+
+    static GetCacheBatchResult toBatchResult(Optional<CacheEntryWrapper> cacheResult) {
+        if (!cacheResult.isPresent()) {
+            return GetCacheBatchResult.newBuilder()
+                    .setStatus(CacheResultStatus.NOT_FOUND)
+                    .build();
+        }
+
+        CacheEntryWrapper cacheMetadata = cacheResult.get();
+        if (cacheMetadata.getCacheEntry().getChunkedResult() != null) {
+            // too large for a batch, has to be read with GetCacheChunked
+            return GetCacheBatchResult.newBuilder()
+                    .setStatus(CacheResultStatus.CHUNKED)
+                    .setMetadata(toCacheMetadata(cacheMetadata))
+                    .build();
+        }
+        return GetCacheBatchResult.newBuilder()
+                .setStatus(cacheMetadata.isStale() ? CacheResultStatus.STALE : CacheResultStatus.HIT)
+                .setResultBytes(toResultBytes(cacheMetadata))
+                .setMetadata(toCacheMetadata(cacheMetadata))
+                .build();
+    }
+
+    private static ByteString toResultBytes(CacheEntryWrapper cacheMetadata) {
+        byte[] result = cacheMetadata.getCacheEntry().getResult();
+        // the entry is not modified once read, so the response can share its bytes
+        return result == null ? ByteString.EMPTY : UnsafeByteOperations.unsafeWrap(result);
+    }
 
-        responseObserver.onNext(PutCacheResponse.newBuilder().build());
-        responseObserver.onCompleted();
+    private static CacheMetadata toCacheMetadata(CacheEntryWrapper cacheMetadata) {
+        return CacheMetadata.newBuilder()
+                .setDateCreated(cacheMetadata.getCacheEntry().getDateCreated())
+                .setStale(cacheMetadata.isStale())
+                .setRefresh(cacheMetadata.isRefresh())
+                .setRefreshToken(cacheMetadata.getRefreshToken())
+                .build();
     }
 }
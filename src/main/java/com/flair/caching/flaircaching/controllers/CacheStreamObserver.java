@@ -0,0 +1,303 @@
+package com.flair.caching.flaircaching.controllers;
+
+import com.flair.bi.messages.CacheStreamRequest;
+import com.flair.bi.messages.CacheStreamResponse;
+import com.flair.bi.messages.PutCacheResponse;
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.services.CacheService;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Handles a single cache stream. Operations are buffered and flushed as batched cache calls once a batch
+ * is full or the flush window has passed, responses carry the correlation id of their operation.
+ * Only as many operations as fit in a batch are requested from the client at a time, so a busy cache
+ * pushes back on the stream. Responses are only sent while the client is ready to receive them, further
+ * operations are requested once the responses of the earlier ones are sent, so a slow reader pushes back
+ * on the stream as well. Batches run on the bounded io executor, a full queue closes the stream as busy.
+ */
+@Slf4j
+class CacheStreamObserver implements StreamObserver<CacheStreamRequest> {
+
+    private final CacheService cacheService;
+    private final ServerCallStreamObserver<CacheStreamResponse> responseObserver;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable onRejected;
+    private final long flushWindowMillis;
+    private final int maxBatchSize;
+
+    // guards pending and scheduledFlush
+    private final Object lock = new Object();
+    // held for a whole flush, so operations are applied in arrival order and responses are sent from one thread at a time
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // guarded by flushLock, responses not sent yet and the operations to request once they are
+    private final Deque<CacheStreamResponse> backlog = new ArrayDeque<>();
+    private int deferredRequests;
+    private boolean completed;
+    private List<CacheStreamRequest> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private volatile boolean closed;
+
+    CacheStreamObserver(CacheService cacheService,
+                        ServerCallStreamObserver<CacheStreamResponse> responseObserver,
+                        Executor executor,
+                        ScheduledExecutorService scheduler,
+                        Runnable onRejected,
+                        CacheProperties.Stream streamProperties) {
+        this.cacheService = cacheService;
+        this.responseObserver = responseObserver;
+        // flushes of one stream queue up behind each other instead of holding io threads on flushLock
+        this.executor = MoreExecutors.newSequentialExecutor(executor);
+        this.scheduler = scheduler;
+        this.onRejected = onRejected;
+        this.flushWindowMillis = streamProperties.getFlushWindowMillis();
+        this.maxBatchSize = streamProperties.getMaxBatchSize();
+
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnCancelHandler(() -> closed = true);
+        responseObserver.setOnReadyHandler(this::onReady);
+        responseObserver.request(maxBatchSize);
+    }
+
+    @Override
+    public void onNext(CacheStreamRequest request) {
+        try {
+            synchronized (lock) {
+                pending.add(request);
+                if (pending.size() >= maxBatchSize) {
+                    executor.execute(this::flush);
+                } else if (scheduledFlush == null) {
+                    // the timer only hands the flush to the io executor
+                    scheduledFlush = scheduler.schedule(this::scheduledFlush, flushWindowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            busy();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("Cache stream closed by client", t);
+        closed = true;
+        drain();
+    }
+
+    @Override
+    public void onCompleted() {
+        try {
+            executor.execute(this::complete);
+        } catch (RejectedExecutionException e) {
+            busy();
+        }
+    }
+
+    private void scheduledFlush() {
+        try {
+            executor.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            busy();
+        }
+    }
+
+    private void onReady() {
+        try {
+            executor.execute(() -> {
+                flushLock.lock();
+                try {
+                    sendBacklog();
+                } finally {
+                    flushLock.unlock();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busy();
+        }
+    }
+
+    /**
+     * Closes the stream with {@link CacheGrpcController#BUSY}, pending operations are dropped.
+     */
+    private void busy() {
+        onRejected.run();
+        flushLock.lock();
+        try {
+            drain();
+            backlog.clear();
+            if (!closed) {
+                closed = true;
+                responseObserver.onError(CacheGrpcController.BUSY.asRuntimeException());
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void complete() {
+        flushLock.lock();
+        try {
+            completed = true;
+            flush();
+            sendBacklog();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flush() {
+        flushLock.lock();
+        try {
+            List<CacheStreamRequest> requests = drain();
+            if (requests.isEmpty() || closed) {
+                return;
+            }
+            process(requests);
+            deferredRequests += requests.size();
+            sendBacklog();
+        } catch (RuntimeException e) {
+            log.error("Error processing cache stream", e);
+            closed = true;
+            backlog.clear();
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription("errors.cache.internal")
+                    .withCause(e)
+                    .asRuntimeException());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Sends responses while the client is ready. Once all are sent, the next operations are requested, or a
+     * completed stream is closed. Called with flushLock held.
+     */
+    private void sendBacklog() {
+        while (!closed && !backlog.isEmpty() && responseObserver.isReady()) {
+            responseObserver.onNext(backlog.poll());
+        }
+        if (closed || !backlog.isEmpty()) {
+            return;
+        }
+        if (completed) {
+            closed = true;
+            responseObserver.onCompleted();
+        } else if (deferredRequests > 0) {
+            responseObserver.request(deferredRequests);
+            deferredRequests = 0;
+        }
+    }
+
+    private List<CacheStreamRequest> drain() {
+        synchronized (lock) {
+            List<CacheStreamRequest> requests = pending;
+            pending = new ArrayList<>();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            return requests;
+        }
+    }
+
+    private void process(List<CacheStreamRequest> requests) {
+        // consecutive operations of the same kind become one batch, so a get still sees an earlier put
+        int start = 0;
+        while (start < requests.size()) {
+            CacheStreamRequest.OperationCase operation = requests.get(start).getOperationCase();
+            int end = start + 1;
+            while (end < requests.size() && requests.get(end).getOperationCase() == operation) {
+                end++;
+            }
+
+            List<CacheStreamRequest> batch = requests.subList(start, end);
+            switch (operation) {
+                case GET:
+                    processGets(batch);
+                    break;
+                case PUT:
+                    processPuts(batch);
+                    break;
+                default:
+                    batch.forEach(it -> sendError(it, "errors.cache.operation.null"));
+            }
+            start = end;
+        }
+    }
+
+    private void processGets(List<CacheStreamRequest> batch) {
+        List<CacheStreamRequest> requests = batch.stream()
+                .filter(it -> isValid(it, it.getGet().getTable(), it.getGet().getKey()))
+                .collect(Collectors.toList());
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        Map<CacheKey, Optional<CacheEntryWrapper>> cacheResults = cacheService.getResults(requests.stream()
+                .map(it -> new CacheKey(it.getGet().getTable(), it.getGet().getKey()))
+                .collect(Collectors.toList()));
+
+        for (CacheStreamRequest request : requests) {
+            CacheKey cacheKey = new CacheKey(request.getGet().getTable(), request.getGet().getKey());
+            backlog.add(CacheStreamResponse.newBuilder()
+                    .setCorrelationId(request.getCorrelationId())
+                    .setGet(CacheGrpcController.toBatchResult(cacheResults.get(cacheKey)))
+                    .build());
+        }
+    }
+
+    private void processPuts(List<CacheStreamRequest> batch) {
+        List<CacheStreamRequest> requests = batch.stream()
+                .filter(it -> isValid(it, it.getPut().getTable(), it.getPut().getKey()))
+                .collect(Collectors.toList());
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        cacheService.putResults(requests.stream()
+                .map(it -> CacheGrpcController.toCachePutEntry(it.getPut()))
+                .collect(Collectors.toList()));
+
+        for (CacheStreamRequest request : requests) {
+            backlog.add(CacheStreamResponse.newBuilder()
+                    .setCorrelationId(request.getCorrelationId())
+                    .setPut(PutCacheResponse.newBuilder().build())
+                    .build());
+        }
+    }
+
+    private boolean isValid(CacheStreamRequest request, String table, String key) {
+        Status invalid = CacheGrpcController.validate(table, key);
+        if (invalid != null) {
+            sendError(request, invalid.getDescription());
+            return false;
+        }
+        return true;
+    }
+
+    private void sendError(CacheStreamRequest request, String error) {
+        backlog.add(CacheStreamResponse.newBuilder()
+                .setCorrelationId(request.getCorrelationId())
+                .setError(error)
+                .build());
+    }
+}
@@ -0,0 +1,152 @@
+package com.flair.caching.flaircaching.controllers;
+
+import com.flair.bi.messages.CacheMetadata;
+import com.flair.bi.messages.GetCacheChunk;
+import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import com.flair.caching.flaircaching.repositories.CacheEntry;
+import com.flair.caching.flaircaching.repositories.CacheEntryChangedException;
+import com.flair.caching.flaircaching.repositories.ChunkIterator;
+import com.flair.caching.flaircaching.services.CacheService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends a result as a stream of chunks, the first chunk carries the metadata. Chunks are only read
+ * from the repository while the client is ready to receive them, so a slow client does not make
+ * the server buffer the whole result. Reads run on the io executor, never on the transport threads.
+ */
+@Slf4j
+class ChunkedGetSender {
+
+    private final ServerCallStreamObserver<GetCacheChunk> responseObserver;
+    private final Executor executor;
+    private final Runnable onRejected;
+    private final int chunkSize;
+    private CacheMetadata metadata;
+    private ChunkIterator chunks;
+    private ByteString inlineResult;
+    private int offset;
+    private boolean started;
+    private boolean first = true;
+    private boolean done;
+
+    ChunkedGetSender(ServerCallStreamObserver<GetCacheChunk> responseObserver, Executor executor, Runnable onRejected,
+                     int chunkSize) {
+        this.responseObserver = responseObserver;
+        // ready notifications queue up behind a running drain instead of holding io threads on its lock
+        this.executor = MoreExecutors.newSequentialExecutor(executor);
+        this.onRejected = onRejected;
+        this.chunkSize = chunkSize;
+        responseObserver.setOnCancelHandler(this::cancel);
+        responseObserver.setOnReadyHandler(this::onReady);
+    }
+
+    synchronized void start(CacheService cacheService, String table, String key, CacheEntryWrapper cacheResult,
+                            CacheMetadata metadata) {
+        if (done) {
+            return;
+        }
+        CacheEntry cacheEntry = cacheResult.getCacheEntry();
+        this.metadata = metadata;
+        if (cacheEntry.getChunkedResult() != null) {
+            this.chunks = cacheService.openChunks(table, key, cacheEntry.getChunkedResult());
+        } else {
+            this.inlineResult = cacheEntry.getResult() == null
+                    ? ByteString.EMPTY : UnsafeByteOperations.unsafeWrap(cacheEntry.getResult());
+        }
+        started = true;
+        // the first ready notification may have been delivered before the sender was started
+        drain();
+    }
+
+    synchronized void fail(Status status) {
+        if (done) {
+            return;
+        }
+        finish();
+        responseObserver.onError(status.asRuntimeException());
+    }
+
+    private void onReady() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            rejected();
+        }
+    }
+
+    synchronized void rejected() {
+        if (done) {
+            return;
+        }
+        onRejected.run();
+        fail(CacheGrpcController.BUSY);
+    }
+
+    private synchronized void drain() {
+        try {
+            while (started && !done && responseObserver.isReady()) {
+                if (!hasNext()) {
+                    finish();
+                    responseObserver.onCompleted();
+                    return;
+                }
+                GetCacheChunk.Builder chunk = GetCacheChunk.newBuilder().setData(next());
+                if (first) {
+                    chunk.setMetadata(metadata);
+                    first = false;
+                }
+                responseObserver.onNext(chunk.build());
+            }
+        } catch (CacheEntryChangedException e) {
+            log.debug("Chunked result changed while sending", e);
+            finish();
+            responseObserver.onError(Status.ABORTED
+                    .withDescription("errors.cache.changed")
+                    .asRuntimeException());
+        } catch (RuntimeException e) {
+            log.error("Error sending chunked result", e);
+            finish();
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription("errors.cache.internal")
+                    .withCause(e)
+                    .asRuntimeException());
+        }
+    }
+
+    private boolean hasNext() {
+        // an empty inline result is still sent as one chunk, so the metadata reaches the client
+        return chunks != null ? chunks.hasNext() : first || offset < inlineResult.size();
+    }
+
+    private ByteString next() {
+        if (chunks != null) {
+            return UnsafeByteOperations.unsafeWrap(chunks.next());
+        }
+        int end = Math.min(offset + chunkSize, inlineResult.size());
+        ByteString data = inlineResult.substring(offset, end);
+        offset = end;
+        return data;
+    }
+
+    private synchronized void cancel() {
+        finish();
+    }
+
+    private void finish() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (chunks != null) {
+            chunks.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.flair.caching.flaircaching.controllers;
+
+import com.flair.bi.messages.PutCacheChunk;
+import com.flair.bi.messages.PutCacheResponse;
+import com.flair.caching.flaircaching.services.CacheService;
+import com.flair.caching.flaircaching.services.ChunkedUpload;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Receives a result as a stream of chunks, the first chunk carries the put request.
+ * The entry is only stored once the client completes the stream. Chunks are written on the io executor
+ * in arrival order and the next chunk is only requested once the previous one is written, so a busy
+ * cache pushes back on the client.
+ */
+@Slf4j
+class ChunkedPutObserver implements StreamObserver<PutCacheChunk> {
+
+    private final CacheService cacheService;
+    private final ServerCallStreamObserver<PutCacheResponse> responseObserver;
+    private final Executor executor;
+    private final Runnable onRejected;
+    private ChunkedUpload upload;
+    private boolean failed;
+
+    ChunkedPutObserver(CacheService cacheService, ServerCallStreamObserver<PutCacheResponse> responseObserver,
+                       Executor executor, Runnable onRejected) {
+        this.cacheService = cacheService;
+        this.responseObserver = responseObserver;
+        this.executor = MoreExecutors.newSequentialExecutor(executor);
+        this.onRejected = onRejected;
+
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.request(1);
+    }
+
+    @Override
+    public void onNext(PutCacheChunk chunk) {
+        execute(() -> {
+            receive(chunk);
+            responseObserver.request(1);
+        });
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("Chunked put cancelled by client", t);
+        try {
+            executor.execute(this::abort);
+        } catch (RejectedExecutionException e) {
+            abort();
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        execute(this::complete);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            onRejected.run();
+            fail(CacheGrpcController.BUSY);
+        }
+    }
+
+    private synchronized void receive(PutCacheChunk chunk) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (upload == null) {
+                Status invalid = chunk.hasMetadata()
+                        ? CacheGrpcController.validate(chunk.getMetadata().getTable(), chunk.getMetadata().getKey())
+                        : Status.INVALID_ARGUMENT.withDescription("errors.cache.metadata.null");
+                if (invalid != null) {
+                    fail(invalid);
+                    return;
+                }
+                upload = cacheService.startChunkedPut(CacheGrpcController.toCachePutEntry(chunk.getMetadata())
+                        .setValue(null));
+                upload.append(chunk.getMetadata().getValueBytes().asReadOnlyByteBuffer());
+            }
+            upload.append(chunk.getData().asReadOnlyByteBuffer());
+        } catch (RuntimeException e) {
+            log.error("Error receiving chunked result", e);
+            fail(Status.INTERNAL.withDescription("errors.cache.internal").withCause(e));
+        }
+    }
+
+    private synchronized void complete() {
+        if (failed) {
+            return;
+        }
+        if (upload == null) {
+            fail(Status.INVALID_ARGUMENT.withDescription("errors.cache.metadata.null"));
+            return;
+        }
+        try {
+            upload.commit();
+        } catch (RuntimeException e) {
+            log.error("Error storing chunked result", e);
+            failed = true;
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription("errors.cache.internal")
+                    .withCause(e)
+                    .asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(PutCacheResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    private synchronized void abort() {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        if (upload != null) {
+            upload.abort();
+        }
+    }
+
+    private synchronized void fail(Status status) {
+        if (failed) {
+            return;
+        }
+        abort();
+        responseObserver.onError(status.asRuntimeException());
+    }
+}
@@ -8,5 +8,8 @@ import java.io.Serializable;
 @Data
 @Accessors(chain = true)
 public class CacheCountEntry implements Serializable {
+    // pinned to the computed value of the originally serialized class so legacy records stay readable
+    private static final long serialVersionUID = -7189156768544704426L;
+
     private Integer count;
 }
@@ -9,4 +9,7 @@ import lombok.experimental.Accessors;
 public class CacheEntryWrapper {
     private CacheEntry cacheEntry;
     private boolean stale;
+    // this caller holds the lease to refresh the entry
+    private boolean refresh;
+    private long refreshToken;
 }
@@ -0,0 +1,9 @@
+package com.flair.caching.flaircaching.dto;
+
+import lombok.Value;
+
+@Value
+public class CacheKey {
+    private String table;
+    private String key;
+}
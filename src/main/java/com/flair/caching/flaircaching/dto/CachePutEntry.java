@@ -0,0 +1,24 @@
+package com.flair.caching.flaircaching.dto;
+
+import com.flair.caching.flaircaching.repositories.ChunkedResult;
+import com.flair.caching.flaircaching.repositories.ResultCompression;
+import lombok.Data;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@Data
+@Accessors(chain = true)
+public class CachePutEntry {
+    private String table;
+    private String key;
+    @ToString.Exclude
+    private byte[] value;
+    private ChunkedResult chunkedResult;
+    private Long refreshAfterDate;
+    private Long purgeAfterDate;
+    private Integer refreshAfterCount;
+    private CacheCountEntry cacheCountEntry;
+    private ResultCompression compression = ResultCompression.NONE;
+    // 0 unless the put completes a refresh lease
+    private long refreshToken;
+}
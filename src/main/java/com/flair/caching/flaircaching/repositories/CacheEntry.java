@@ -1,17 +1,60 @@
 package com.flair.caching.flaircaching.repositories;
 
 import lombok.Data;
+import lombok.ToString;
 import lombok.experimental.Accessors;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 @Data
 @Accessors(chain = true)
 public class CacheEntry implements Serializable {
-    private String result;
+    // pinned to the computed value of the originally serialized class so legacy records stay readable
+    private static final long serialVersionUID = 3458719996550189974L;
+
+    // serialized form of the legacy records, which kept the result as a string
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("result", String.class),
+            new ObjectStreamField("rocksDbKey", String.class),
+            new ObjectStreamField("dateCreated", Long.class),
+            new ObjectStreamField("refreshAfterDate", Long.class),
+            new ObjectStreamField("purgeAfterDate", Long.class),
+            new ObjectStreamField("refreshAfterCount", Integer.class)
+    };
+
+    @ToString.Exclude
+    private byte[] result;
     private String rocksDbKey;
     private Long dateCreated;
     private Long refreshAfterDate;
     private Long purgeAfterDate;
     private Integer refreshAfterCount;
+    private ChunkedResult chunkedResult;
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        String legacyResult = (String) fields.get("result", null);
+        result = legacyResult == null ? null : legacyResult.getBytes(StandardCharsets.UTF_8);
+        rocksDbKey = (String) fields.get("rocksDbKey", null);
+        dateCreated = (Long) fields.get("dateCreated", null);
+        refreshAfterDate = (Long) fields.get("refreshAfterDate", null);
+        purgeAfterDate = (Long) fields.get("purgeAfterDate", null);
+        refreshAfterCount = (Integer) fields.get("refreshAfterCount", null);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("result", result == null ? null : new String(result, StandardCharsets.UTF_8));
+        fields.put("rocksDbKey", rocksDbKey);
+        fields.put("dateCreated", dateCreated);
+        fields.put("refreshAfterDate", refreshAfterDate);
+        fields.put("purgeAfterDate", purgeAfterDate);
+        fields.put("refreshAfterCount", refreshAfterCount);
+        out.writeFields();
+    }
 }
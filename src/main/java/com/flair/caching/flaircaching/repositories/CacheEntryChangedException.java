@@ -0,0 +1,7 @@
+package com.flair.caching.flaircaching.repositories;
+
+public class CacheEntryChangedException extends CacheRuntimeException {
+    public CacheEntryChangedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,258 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.dto.CacheCountEntry;
+import com.google.common.primitives.Ints;
+import org.apache.commons.lang.SerializationUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Binary layout of the values stored in the {@code entries} and {@code counts} column families.
+ *
+ * <pre>
+ * entry (version 1)
+ *   0  byte  version
+ *   1  byte  flags
+ *   2  long  dateCreated
+ *  10  long  refreshAfterDate
+ *  18  long  purgeAfterDate
+ *  26  int   refreshAfterCount
+ *  30  ...   result bytes, or if compressed
+ *  30  int   uncompressed result length
+ *  34  ...   compressed result bytes
+ *
+ * entry with a chunked result, the result itself is stored in the chunks column family
+ *  30  long  chunk generation
+ *  38  int   chunk count
+ *  42  long  result length
+ *
+ * entry stored under a digest of its key, after the result
+ *      ...   key (utf-8)
+ *      int   key length, the last 4 bytes of the value
+ *
+ * flags
+ *  bit 0     result is null
+ *  bit 1-2   {@link ResultCompression} id
+ *  bit 3     result is chunked
+ *  bit 4     key is kept in the entry
+ *
+ * count
+ *   0  long  count (little-endian, the layout of the rocksdb uint64add merge operator)
+ * </pre>
+ *
+ * Values written with java serialization by older versions are still decoded.
+ */
+public final class CacheEntryCodec {
+
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 30;
+    public static final int CHUNKED_HEADER_SIZE = HEADER_SIZE + 20;
+
+    private static final int PURGE_AFTER_DATE_OFFSET = 18;
+    private static final int COUNT_SIZE = 8;
+    private static final int FLAG_NULL_RESULT = 0x01;
+    private static final int COMPRESSION_SHIFT = 1;
+    private static final int COMPRESSION_MASK = 0x03;
+    private static final int FLAG_CHUNKED = 0x08;
+    private static final int FLAG_KEY = 0x10;
+
+    private static final byte STREAM_MAGIC_HI = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_LO = (byte) 0xED;
+
+    private CacheEntryCodec() {
+    }
+
+    public static byte[] encode(CacheEntry cacheEntry) {
+        return encode(cacheEntry, ResultCompression.NONE);
+    }
+
+    public static byte[] encode(CacheEntry cacheEntry, ResultCompression compression) {
+        return encode(cacheEntry, compression, null);
+    }
+
+    /**
+     * Results that do not get smaller are stored uncompressed. The key is kept in the entry unless it is null.
+     */
+    public static byte[] encode(CacheEntry cacheEntry, ResultCompression compression, byte[] key) {
+        if (cacheEntry.getChunkedResult() != null) {
+            return encodeChunked(cacheEntry, key);
+        }
+
+        byte[] result = cacheEntry.getResult();
+        byte[] payload = result == null ? new byte[0] : compression.compress(result);
+        boolean compressed = result != null && compression != ResultCompression.NONE && payload.length < result.length;
+        if (result != null && !compressed) {
+            payload = result;
+        }
+
+        int flags = (result == null ? FLAG_NULL_RESULT : 0)
+                | (compressed ? compression.getId() << COMPRESSION_SHIFT : 0);
+        ByteBuffer buffer = putHeader(ByteBuffer.allocate(HEADER_SIZE + (compressed ? Integer.BYTES : 0)
+                + payload.length + getKeySize(key)), flags, cacheEntry, key);
+        if (compressed) {
+            buffer.putInt(result.length);
+        }
+        return putKey(buffer.put(payload), key).array();
+    }
+
+    private static byte[] encodeChunked(CacheEntry cacheEntry, byte[] key) {
+        ChunkedResult chunkedResult = cacheEntry.getChunkedResult();
+        ByteBuffer buffer = putHeader(ByteBuffer.allocate(CHUNKED_HEADER_SIZE + getKeySize(key)), FLAG_CHUNKED,
+                cacheEntry, key)
+                .putLong(chunkedResult.getGeneration())
+                .putInt(chunkedResult.getChunkCount())
+                .putLong(chunkedResult.getLength());
+        return putKey(buffer, key).array();
+    }
+
+    /**
+     * @return the value with the key kept in it, the value must not hold a key yet
+     */
+    public static byte[] withKey(byte[] value, byte[] key) {
+        checkVersion(value);
+        ByteBuffer buffer = ByteBuffer.allocate(value.length + getKeySize(key)).put(value);
+        buffer.put(1, (byte) (value[1] | FLAG_KEY));
+        return putKey(buffer, key).array();
+    }
+
+    /**
+     * @return the key kept in the entry, null if it has none
+     */
+    public static byte[] decodeKey(byte[] value) {
+        if (isLegacy(value)) {
+            return null;
+        }
+
+        checkVersion(value);
+        if ((value[1] & FLAG_KEY) == 0) {
+            return null;
+        }
+        int keyLength = ByteBuffer.wrap(value).getInt(value.length - Integer.BYTES);
+        int offset = value.length - Integer.BYTES - keyLength;
+        return Arrays.copyOfRange(value, offset, offset + keyLength);
+    }
+
+    private static int getKeySize(byte[] key) {
+        return key == null ? 0 : key.length + Integer.BYTES;
+    }
+
+    private static ByteBuffer putKey(ByteBuffer buffer, byte[] key) {
+        return key == null ? buffer : buffer.put(key).putInt(key.length);
+    }
+
+    private static ByteBuffer putHeader(ByteBuffer buffer, int flags, CacheEntry cacheEntry, byte[] key) {
+        return buffer
+                .put(VERSION)
+                .put((byte) (flags | (key == null ? 0 : FLAG_KEY)))
+                .putLong(toLong(cacheEntry.getDateCreated()))
+                .putLong(toLong(cacheEntry.getRefreshAfterDate()))
+                .putLong(toLong(cacheEntry.getPurgeAfterDate()))
+                .putInt(cacheEntry.getRefreshAfterCount() == null ? 0 : cacheEntry.getRefreshAfterCount());
+    }
+
+    public static CacheEntry decode(String rocksDbKey, byte[] value) {
+        if (isLegacy(value)) {
+            return (CacheEntry) SerializationUtils.deserialize(value);
+        }
+
+        checkVersion(value);
+        ByteBuffer buffer = ByteBuffer.wrap(value, 1, value.length - 1);
+        int flags = buffer.get();
+        CacheEntry cacheEntry = getHeader(buffer, flags).setRocksDbKey(rocksDbKey);
+        if ((flags & (FLAG_NULL_RESULT | FLAG_CHUNKED)) != 0) {
+            return cacheEntry;
+        }
+
+        ResultCompression compression = ResultCompression.of((flags >> COMPRESSION_SHIFT) & COMPRESSION_MASK);
+        int end = (flags & FLAG_KEY) == 0 ? value.length
+                : value.length - Integer.BYTES - ByteBuffer.wrap(value).getInt(value.length - Integer.BYTES);
+        int offset = HEADER_SIZE;
+        int resultLength = end - HEADER_SIZE;
+        if (compression != ResultCompression.NONE) {
+            resultLength = buffer.getInt();
+            offset += Integer.BYTES;
+        }
+        return cacheEntry.setResult(compression.decompress(value, offset, end - offset, resultLength));
+    }
+
+    /**
+     * Decodes an entry without its result, the value only needs to hold the first
+     * {@link #CHUNKED_HEADER_SIZE} bytes of the stored entry.
+     */
+    public static CacheEntry decodeHeader(byte[] value) {
+        if (isLegacy(value)) {
+            return ((CacheEntry) SerializationUtils.deserialize(value)).setResult(null);
+        }
+
+        checkVersion(value);
+        ByteBuffer buffer = ByteBuffer.wrap(value, 1, value.length - 1);
+        return getHeader(buffer, buffer.get());
+    }
+
+    private static CacheEntry getHeader(ByteBuffer buffer, int flags) {
+        CacheEntry cacheEntry = new CacheEntry()
+                .setDateCreated(buffer.getLong())
+                .setRefreshAfterDate(buffer.getLong())
+                .setPurgeAfterDate(buffer.getLong())
+                .setRefreshAfterCount(buffer.getInt());
+        if ((flags & FLAG_CHUNKED) != 0) {
+            cacheEntry.setChunkedResult(new ChunkedResult()
+                    .setGeneration(buffer.getLong())
+                    .setChunkCount(buffer.getInt())
+                    .setLength(buffer.getLong()));
+        }
+        return cacheEntry;
+    }
+
+    public static long decodePurgeAfterDate(byte[] value) {
+        if (isLegacy(value)) {
+            return toLong(((CacheEntry) SerializationUtils.deserialize(value)).getPurgeAfterDate());
+        }
+
+        checkVersion(value);
+        return ByteBuffer.wrap(value).getLong(PURGE_AFTER_DATE_OFFSET);
+    }
+
+    public static byte[] encodeCount(CacheCountEntry cacheCountEntry) {
+        return ByteBuffer.allocate(COUNT_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(cacheCountEntry.getCount() == null ? 0 : cacheCountEntry.getCount())
+                .array();
+    }
+
+    public static CacheCountEntry decodeCount(byte[] value) {
+        if (value.length == COUNT_SIZE) {
+            long count = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            return new CacheCountEntry().setCount(Ints.saturatedCast(count));
+        }
+        if (isLegacy(value)) {
+            return (CacheCountEntry) SerializationUtils.deserialize(value);
+        }
+
+        throw new CacheRuntimeException("Unsupported cache count format of size " + value.length);
+    }
+
+    public static boolean isLegacy(byte[] value) {
+        return value.length > 1 && value[0] == STREAM_MAGIC_HI && value[1] == STREAM_MAGIC_LO;
+    }
+
+    /**
+     * A binary count starts with its low bytes, which can match the java serialization magic, so only values
+     * of another size are taken for serialized counts.
+     */
+    public static boolean isLegacyCount(byte[] value) {
+        return value.length != COUNT_SIZE && isLegacy(value);
+    }
+
+    private static void checkVersion(byte[] value) {
+        if (value.length < HEADER_SIZE || value[0] != VERSION) {
+            throw new CacheRuntimeException("Unsupported cache entry format " + (value.length == 0 ? "" : value[0]));
+        }
+    }
+
+    private static long toLong(Long value) {
+        return value == null ? 0 : value;
+    }
+}
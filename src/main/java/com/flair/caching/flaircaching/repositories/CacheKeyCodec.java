@@ -0,0 +1,70 @@
+package com.flair.caching.flaircaching.repositories;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary layout of the keys of the {@code entries} and {@code counts} column families.
+ *
+ * <pre>
+ *   0  int   table id
+ *   4  ...   key (utf-8)
+ *
+ * long keys stored under a digest, the key itself is kept in the entry
+ *   0  int   table id
+ *   4  byte  0xff, which no utf-8 key starts with
+ *   5  ...   {@link KeyDigest} of the key
+ * </pre>
+ *
+ * Table ids are assigned by the repository and stay below 2^24, so a key always starts with a 0 byte,
+ * which no {@code table.key} string key written by older versions does. The keys of a table share the
+ * table id as a fixed length prefix and sort by key, followed by the digested keys of the table.
+ */
+public final class CacheKeyCodec {
+
+    public static final int TABLE_ID_SIZE = Integer.BYTES;
+    public static final int MAX_TABLE_ID = 0xFFFFFF;
+
+    private static final byte DIGEST_MARKER = (byte) 0xFF;
+
+    private CacheKeyCodec() {
+    }
+
+    public static byte[] encode(int tableId, String key) {
+        return encode(tableId, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] encode(int tableId, byte[] keyBytes) {
+        return ByteBuffer.allocate(TABLE_ID_SIZE + keyBytes.length)
+                .putInt(tableId)
+                .put(keyBytes)
+                .array();
+    }
+
+    public static byte[] encodeDigest(int tableId, byte[] digest) {
+        return ByteBuffer.allocate(TABLE_ID_SIZE + 1 + digest.length)
+                .putInt(tableId)
+                .put(DIGEST_MARKER)
+                .put(digest)
+                .array();
+    }
+
+    public static int decodeTableId(byte[] cacheKey) {
+        return ByteBuffer.wrap(cacheKey).getInt();
+    }
+
+    /**
+     * Only for keys that are not digested.
+     */
+    public static String decodeKey(byte[] cacheKey) {
+        return new String(cacheKey, TABLE_ID_SIZE, cacheKey.length - TABLE_ID_SIZE, StandardCharsets.UTF_8);
+    }
+
+    public static boolean isDigest(byte[] cacheKey) {
+        return cacheKey.length > TABLE_ID_SIZE && cacheKey[TABLE_ID_SIZE] == DIGEST_MARKER;
+    }
+
+    public static boolean isLegacy(byte[] cacheKey) {
+        return cacheKey.length < TABLE_ID_SIZE || cacheKey[0] != 0;
+    }
+}
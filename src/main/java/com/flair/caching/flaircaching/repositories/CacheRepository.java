@@ -1,246 +1,1731 @@
 package com.flair.caching.flaircaching.repositories;
 
+import com.flair.caching.flaircaching.config.RocksDbProperties;
 import com.flair.caching.flaircaching.dto.CacheCountEntry;
-import lombok.RequiredArgsConstructor;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
 import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.ColumnFamilyOptions;
 import org.rocksdb.CompactionPriority;
+import org.rocksdb.CompressionType;
 import org.rocksdb.DBOptions;
+import org.rocksdb.DbPath;
+import org.rocksdb.Filter;
 import org.rocksdb.FlushOptions;
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+import org.rocksdb.TtlDB;
 import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Repository
 @Slf4j
-@RequiredArgsConstructor
 public class CacheRepository {
 
     public static final String COL_ENTRIES = "entries";
     public static final String COL_COUNTS = "counts";
+    public static final String COL_EXPIRY = "expiry";
+    public static final String COL_CHUNKS = "chunks";
+
+    private static final List<String> TABLE_COLUMN_FAMILIES = Arrays.asList(COL_ENTRIES, COL_COUNTS, COL_EXPIRY, COL_CHUNKS);
+    // families of a table are named kind:generation:table, a dropped table comes back with a new generation
+    private static final String TABLE_FAMILY_SEPARATOR = ":";
+    // table name to the id the keys of the table start with
+    private static final String COL_TABLE_IDS = "table-ids";
+    // holds the format version marker
+    private static final String DEFAULT_COLUMN_FAMILY = new String(RocksDB.DEFAULT_COLUMN_FAMILY, StandardCharsets.UTF_8);
+
+    // 1: binary entry and count format, 2: expiry index, 3: binary keys
+    private static final byte STORAGE_VERSION = 3;
+    private static final byte[] FORMAT_VERSION_KEY = "format.version".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = new byte[0];
+    // legacy string keys never start with a 0 byte, so they sort after all binary keys
+    private static final byte[] LEGACY_KEYS_START = {1};
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    // the chunks of moved entries make a key migration batch large, it is written once it holds this many bytes
+    private static final long MIGRATION_BATCH_BYTES = 32 * 1024 * 1024;
+    private static final int INVALIDATION_BATCH_SIZE = 1000;
 
     static {
         RocksDB.loadLibrary();
     }
 
+    private final RocksDbProperties rocksDbProperties;
+    private final Timer readTimer;
+    private final Timer headerReadTimer;
+    private final Timer writeTimer;
+    private final Timer countWriteTimer;
+    private final Timer encodeTimer;
+    private final Timer decodeTimer;
+    private final Timer checkpointTimer;
+    private final Timer restoreTimer;
+
     private RocksDB rocksDB;
     private final Map<String, ColumnFamilyHandle> columnFamilies = new ConcurrentHashMap<>();
     private final List<ColumnFamilyHandle> cfHandlesList = new CopyOnWriteArrayList<>();
-    private ColumnFamilyOptions cfOptions;
+    // options and filters of the shared families
+    private final List<AbstractNativeReference> cfResources = new ArrayList<>();
+    // by column family kind
+    private final Map<String, Cache> blockCaches = new ConcurrentHashMap<>();
     private DBOptions dbOptions;
+    // shared by all writes of entries, counts and chunks
+    private WriteOptions writeOptions;
+    // guarded by this, null if disabled or once the db is closed
+    private Statistics statistics;
+    // guarded by this
+    private boolean closed;
+
+    private TableColumnFamilies sharedFamilies;
+    private final Map<String, TableColumnFamilies> tableFamilies = new ConcurrentHashMap<>();
+    // guards creating and dropping the families of tables
+    private final Object tablesLock = new Object();
+    private final AtomicLong tableGenerations = new AtomicLong();
+    private ColumnFamilyHandle cfTableIds;
+    private final Map<String, Integer> tableIds = new ConcurrentHashMap<>();
+    private final AtomicInteger lastTableId = new AtomicInteger();
+    // guards assigning table ids, the store of an id is synced so it is not done under a map lock
+    private final Object tableIdsLock = new Object();
+
+    // writers share the read lock, the legacy record migration takes the write lock to re-check its batch
+    private final ReadWriteLock migrationLock = new ReentrantReadWriteLock();
+    private final ExecutorService migrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("cache-migration-%d")
+            .setDaemon(true)
+            .build());
+    // done once the storage has the current version
+    private Future<?> migration = CompletableFuture.completedFuture(null);
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("cache-compaction-%d")
+            .setDaemon(true)
+            .build());
+    // null unless checkpoints are enabled
+    private final Checkpoints checkpoints;
+    // one checkpoint at a time, the db is only closed once it is done
+    private final Object checkpointLock = new Object();
+    // null unless write behind is enabled
+    private final WriteBehindBuffer writeBehind;
+    private final ScheduledExecutorService writeBehindExecutor;
+
+    public CacheRepository(RocksDbProperties rocksDbProperties, MeterRegistry meterRegistry) {
+        this.rocksDbProperties = rocksDbProperties;
+        this.readTimer = timer("cache.repository.io", "read", "Entry and count reads", meterRegistry);
+        this.headerReadTimer = timer("cache.repository.io", "read.header",
+                "Reads of the stored entry header before a put", meterRegistry);
+        this.writeTimer = timer("cache.repository.io", "write", "Entry writes", meterRegistry);
+        this.countWriteTimer = timer("cache.repository.io", "write.counts", "Read count updates", meterRegistry);
+        this.encodeTimer = timer("cache.repository.codec", "encode", "Entry serialization", meterRegistry);
+        this.decodeTimer = timer("cache.repository.codec", "decode", "Entry deserialization", meterRegistry);
+        this.checkpointTimer = timer("cache.repository.checkpoint", "create", "Checkpoint creation", meterRegistry);
+        this.restoreTimer = timer("cache.repository.checkpoint", "restore", "Checkpoint restores on startup",
+                meterRegistry);
 
-//    cf_options.level_compaction_dynamic_level_bytes = true;
-//    options.max_background_compactions = 4;
-//    options.max_background_flushes = 2;
-//    options.bytes_per_sync = 1048576;
-//    options.compaction_pri = kMinOverlappingRatio;
-//    table_options.block_size = 16 * 1024;
-//    table_options.cache_index_and_filter_blocks = true;
-//    table_options.pin_l0_filter_and_index_blocks_in_cache = true;
+        RocksDbProperties.Checkpoints checkpointProperties = rocksDbProperties.getCheckpoints();
+        this.checkpoints = checkpointProperties.isEnabled()
+                ? new Checkpoints(Paths.get(checkpointProperties.getDir()), checkpointProperties.getRetained())
+                : null;
+
+        if (rocksDbProperties.getWriteBehind().isEnabled()) {
+            this.writeBehind = new WriteBehindBuffer(rocksDbProperties.getWriteBehind().getMaxBytes(), this::write);
+            this.writeBehindExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("cache-write-behind-%d")
+                    .setDaemon(true)
+                    .build());
+            Gauge.builder("cache.repository.write.behind.bytes", writeBehind, WriteBehindBuffer::getPendingBytes)
+                    .description("Bytes of acknowledged puts not yet written")
+                    .register(meterRegistry);
+        } else {
+            this.writeBehind = null;
+            this.writeBehindExecutor = null;
+        }
+    }
+
+    private static Timer timer(String name, String operation, String description, MeterRegistry meterRegistry) {
+        return Timer.builder(name)
+                .tag("operation", operation)
+                .description(description)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
     @PostConstruct
     public void init() throws RocksDBException {
-        log.info("Initializing rocksdb repo");
+        log.info("Initializing rocksdb repo at {}", rocksDbProperties.getPath());
 
-        cfOptions = createCfOptions();
+        validatePaths();
+        restoreCheckpoint();
         dbOptions = getDbOptions();
+        writeOptions = getWriteOptions();
+        if (rocksDbProperties.isStatistics()) {
+            statistics = new Statistics();
+            dbOptions.setStatistics(statistics);
+        }
 
-        try {
-            final List<ColumnFamilyDescriptor> cfDescriptors = Arrays.asList(
-                    new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOptions),
-                    new ColumnFamilyDescriptor(COL_ENTRIES.getBytes(), cfOptions),
-                    new ColumnFamilyDescriptor(COL_COUNTS.getBytes(), cfOptions)
-            );
+        // every family of the db has to be opened, including those of tables dropped before a restart
+        final List<String> cfNames = new ArrayList<>(new LinkedHashSet<>(ImmutableList.<String>builder()
+                .add(DEFAULT_COLUMN_FAMILY)
+                .addAll(TABLE_COLUMN_FAMILIES)
+                .add(COL_TABLE_IDS)
+                .addAll(listColumnFamilies())
+                .build()));
+        final List<ColumnFamilyDescriptor> cfDescriptors = new ArrayList<>();
+        final List<Integer> ttls = new ArrayList<>();
+        // options of the families of tables, by generation and table
+        final Map<String, List<AbstractNativeReference>> tableResources = new LinkedHashMap<>();
+        for (String cfName : cfNames) {
+            String[] tableFamily = parseTableFamilyName(cfName);
+            String kind = tableFamily == null ? cfName : tableFamily[0];
+            RocksDbProperties.TableOptions tableOptions = tableFamily == null
+                    ? rocksDbProperties.getTableOptions(kind)
+                    : rocksDbProperties.getTableOptions(kind, tableFamily[2]);
+            List<AbstractNativeReference> resources = tableFamily == null ? cfResources
+                    : tableResources.computeIfAbsent(tableFamily[1] + TABLE_FAMILY_SEPARATOR + tableFamily[2],
+                    it -> new ArrayList<>());
+            cfDescriptors.add(new ColumnFamilyDescriptor(cfName.getBytes(StandardCharsets.UTF_8),
+                    createCfOptions(kind, tableOptions, resources)));
+            // table ids have to outlive the entries keyed by them, the format version marker has to outlive them all
+            ttls.add(COL_TABLE_IDS.equals(cfName) || DEFAULT_COLUMN_FAMILY.equals(cfName)
+                    ? 0 : getTtlSeconds(tableOptions));
+        }
 
-            this.rocksDB = RocksDB.open(dbOptions, "cache", cfDescriptors, cfHandlesList);
-            this.columnFamilies.put(COL_ENTRIES, cfHandlesList.get(1));
-            this.columnFamilies.put(COL_COUNTS, cfHandlesList.get(2));
+        try {
+            if (rocksDbProperties.getTtlSeconds() > 0) {
+                log.info("Opening rocksdb with ttl {} seconds", rocksDbProperties.getTtlSeconds());
+                this.rocksDB = TtlDB.open(dbOptions, rocksDbProperties.getPath(), cfDescriptors, cfHandlesList, ttls, false);
+            } else {
+                this.rocksDB = RocksDB.open(dbOptions, rocksDbProperties.getPath(), cfDescriptors, cfHandlesList);
+            }
         } catch (RocksDBException e) {
             log.error("Error opening rocks db", e);
             throw e;
         }
+
+        final Map<String, ColumnFamilyHandle> cfHandles = new HashMap<>();
+        for (int i = 0; i < cfNames.size(); i++) {
+            cfHandles.put(cfNames.get(i), cfHandlesList.get(i));
+        }
+        for (String kind : TABLE_COLUMN_FAMILIES) {
+            this.columnFamilies.put(kind, cfHandles.get(kind));
+        }
+        this.sharedFamilies = new TableColumnFamilies(null, 0, cfHandles.get(COL_ENTRIES), cfHandles.get(COL_COUNTS),
+                cfHandles.get(COL_EXPIRY), cfHandles.get(COL_CHUNKS), cfResources);
+        openTableFamilies(cfHandles, tableResources);
+        this.cfTableIds = cfHandles.get(COL_TABLE_IDS);
+        loadTableIds();
+
+        final byte[] formatVersion;
+        try {
+            formatVersion = readFormatVersion();
+        } catch (IllegalStateException e) {
+            shutdown();
+            throw e;
+        }
+        int storageVersion = formatVersion == null ? 0 : formatVersion[0];
+        if (storageVersion < STORAGE_VERSION) {
+            migration = migrationExecutor.submit(() -> migrate(storageVersion));
+        }
+        if (writeBehindExecutor != null) {
+            long flushIntervalMillis = rocksDbProperties.getWriteBehind().getFlushIntervalMillis();
+            writeBehindExecutor.scheduleWithFixedDelay(this::flushWritesQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<String> listColumnFamilies() {
+        try (Options options = new Options()) {
+            return RocksDB.listColumnFamilies(options, rocksDbProperties.getPath()).stream()
+                    .map(it -> new String(it, StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+        } catch (RocksDBException e) {
+            log.debug("No column families listed, the db is new", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return kind, generation and table of the name of a family of a table, null for any other family
+     */
+    private static String[] parseTableFamilyName(String cfName) {
+        String[] parts = cfName.split(TABLE_FAMILY_SEPARATOR, 3);
+        if (parts.length != 3 || !TABLE_COLUMN_FAMILIES.contains(parts[0]) || !NumberUtils.isDigits(parts[1])) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static String getTableFamilyName(String kind, long generation, String table) {
+        return kind + TABLE_FAMILY_SEPARATOR + generation + TABLE_FAMILY_SEPARATOR + table;
+    }
+
+    private void openTableFamilies(Map<String, ColumnFamilyHandle> cfHandles,
+                                   Map<String, List<AbstractNativeReference>> tableResources) {
+        for (Map.Entry<String, List<AbstractNativeReference>> resources : tableResources.entrySet()) {
+            String[] generationAndTable = resources.getKey().split(TABLE_FAMILY_SEPARATOR, 2);
+            long generation = Long.parseLong(generationAndTable[0]);
+            String table = generationAndTable[1];
+            tableGenerations.accumulateAndGet(generation, Math::max);
+
+            TableColumnFamilies families = new TableColumnFamilies(table, generation,
+                    cfHandles.get(getTableFamilyName(COL_ENTRIES, generation, table)),
+                    cfHandles.get(getTableFamilyName(COL_COUNTS, generation, table)),
+                    cfHandles.get(getTableFamilyName(COL_EXPIRY, generation, table)),
+                    cfHandles.get(getTableFamilyName(COL_CHUNKS, generation, table)),
+                    resources.getValue());
+            TableColumnFamilies current = tableFamilies.get(table);
+            // left behind by a drop or a create that did not finish before a restart
+            if (families.getHandles().contains(null) || (current != null && current.getGeneration() > generation)) {
+                destroy(families);
+                continue;
+            }
+            if (current != null) {
+                destroy(current);
+            }
+            tableFamilies.put(table, families);
+            log.info("Opened column families of table {}", table);
+        }
+    }
+
+    private void loadTableIds() {
+        try (RocksIterator itr = this.rocksDB.newIterator(cfTableIds)) {
+            for (itr.seekToFirst(); itr.isValid(); itr.next()) {
+                int tableId = Ints.fromByteArray(itr.value());
+                tableIds.put(new String(itr.key(), StandardCharsets.UTF_8), tableId);
+                lastTableId.accumulateAndGet(tableId, Math::max);
+            }
+            itr.status();
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        }
+    }
+
+    /**
+     * @return the id of the table, assigned and stored on the first put to the table
+     */
+    private int getTableId(String table) {
+        Integer tableId = tableIds.get(table);
+        if (tableId != null) {
+            return tableId;
+        }
+        synchronized (tableIdsLock) {
+            tableId = tableIds.get(table);
+            if (tableId == null) {
+                tableId = createTableId(table);
+                tableIds.put(table, tableId);
+            }
+            return tableId;
+        }
+    }
+
+    /**
+     * @return the id of the table, null if nothing was ever put to the table, reads and removals then have
+     * nothing to find
+     */
+    private Integer findTableId(String table) {
+        return tableIds.get(table);
+    }
+
+    private int createTableId(String table) {
+        int tableId = lastTableId.incrementAndGet();
+        if (tableId > CacheKeyCodec.MAX_TABLE_ID) {
+            throw new CacheRuntimeException("No table id left for table " + table);
+        }
+        // synced, an id must not be handed out again after a crash
+        try (WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+            this.rocksDB.put(cfTableIds, writeOptions, table.getBytes(StandardCharsets.UTF_8), Ints.toByteArray(tableId));
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        }
+        log.info("Assigned id {} to table {}", tableId, table);
+        return tableId;
+    }
+
+    private byte[] readFormatVersion() {
+        // ttl records carry a 4 byte timestamp suffix, so a mode switch shows up on the version marker
+        final byte[] formatVersion;
+        try {
+            formatVersion = this.rocksDB.get(FORMAT_VERSION_KEY);
+        } catch (RocksDBException e) {
+            throw new IllegalStateException("Cache directory was created without rocksdb ttl, it cannot be enabled", e);
+        }
+        if (formatVersion != null && formatVersion.length != 1) {
+            throw new IllegalStateException("Cache directory was created with rocksdb ttl, it cannot be disabled");
+        }
+        return formatVersion;
     }
 
     @PreDestroy
     public void shutdown() {
         log.info("Shutting down rocksdb repo");
+        migrationExecutor.shutdownNow();
+        compactionExecutor.shutdownNow();
+        if (writeBehindExecutor != null) {
+            writeBehindExecutor.shutdownNow();
+        }
+        try {
+            migrationExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            compactionExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            if (writeBehindExecutor != null) {
+                writeBehindExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flushWrites();
+        } catch (RuntimeException e) {
+            log.error("Failed to write buffered puts before cleanup", e);
+        }
         try {
             this.rocksDB.flush(new FlushOptions());
         } catch (RocksDBException e) {
             log.warn("Failed to flush db before cleanup", e);
         }
-        this.cfHandlesList.forEach(it -> it.close());
-        this.cfHandlesList.clear();
-        this.columnFamilies.clear();
-        this.dbOptions.close();
-        this.rocksDB.close();
-        this.cfOptions.close();
+        // metrics and checkpoints use native handles, so they must not run while the db is closed
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                this.closed = true;
+                this.cfHandlesList.forEach(it -> it.close());
+                this.cfHandlesList.clear();
+                this.columnFamilies.clear();
+                this.dbOptions.close();
+                this.writeOptions.close();
+                this.rocksDB.close();
+                if (this.statistics != null) {
+                    this.statistics.close();
+                    this.statistics = null;
+                }
+            }
+        }
+        this.tableFamilies.values().forEach(it -> it.getResources().forEach(AbstractNativeReference::close));
+        this.tableFamilies.clear();
+        this.cfResources.forEach(AbstractNativeReference::close);
+        this.cfResources.clear();
+        this.blockCaches.values().forEach(AbstractNativeReference::close);
+        this.blockCaches.clear();
+    }
+
+    /**
+     * Creates a checkpoint of the db including the buffered puts, see {@link RocksDbProperties.Checkpoints}.
+     *
+     * @return the directory of the checkpoint, null if checkpoints are disabled
+     */
+    public Path createCheckpoint() {
+        if (checkpoints == null) {
+            return null;
+        }
+        flushWrites();
+        synchronized (checkpointLock) {
+            if (isClosed()) {
+                throw new CacheRuntimeException("Rocksdb is closed");
+            }
+            try {
+                long start = System.nanoTime();
+                Path checkpoint = checkpoints.create(rocksDB);
+                long nanos = System.nanoTime() - start;
+                checkpointTimer.record(nanos, TimeUnit.NANOSECONDS);
+                log.info("Created checkpoint {} in {} ms", checkpoint, TimeUnit.NANOSECONDS.toMillis(nanos));
+                return checkpoint;
+            } catch (RocksDBException e) {
+                throw new CacheRuntimeException("Rocksdb error", e);
+            } catch (IOException e) {
+                throw new CacheRuntimeException("Checkpoint error", e);
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Starts a new cache directory from the latest checkpoint, a cache directory in use is kept.
+     */
+    private void restoreCheckpoint() {
+        if (checkpoints == null || !rocksDbProperties.getCheckpoints().isRestore()
+                || Files.exists(Paths.get(rocksDbProperties.getPath(), "CURRENT"))) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            Path dbPath = Paths.get(rocksDbProperties.getPath());
+            Path checkpoint = checkpoints.restoreLatest(dbPath, StringUtils.isEmpty(rocksDbProperties.getWalDir())
+                    ? dbPath : Paths.get(rocksDbProperties.getWalDir()));
+            if (checkpoint != null) {
+                long nanos = System.nanoTime() - start;
+                restoreTimer.record(nanos, TimeUnit.NANOSECONDS);
+                log.info("Restored checkpoint {} in {} ms", checkpoint, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        } catch (IOException e) {
+            // an empty cache still works
+            log.error("Failed to restore checkpoint, starting empty", e);
+        }
+    }
+
+    /**
+     * @return the statistics ticker, NaN if statistics are disabled or the db is closed
+     */
+    public synchronized double getTickerCount(TickerType tickerType) {
+        return statistics == null ? Double.NaN : statistics.getTickerCount(tickerType);
+    }
+
+    /**
+     * @return the statistics histogram, null if statistics are disabled or the db is closed
+     */
+    public synchronized HistogramData getHistogramData(HistogramType histogramType) {
+        return statistics == null ? null : statistics.getHistogramData(histogramType);
+    }
+
+    /**
+     * @return the integer property of the column family, NaN if it is not available
+     */
+    public synchronized double getLongProperty(String columnFamily, String property) {
+        ColumnFamilyHandle cfHandle = this.columnFamilies.get(columnFamily);
+        if (cfHandle == null) {
+            return Double.NaN;
+        }
+        try {
+            return this.rocksDB.getLongProperty(cfHandle, property);
+        } catch (RocksDBException e) {
+            log.debug("Rocksdb property {} not available", property, e);
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return the property of the column family, null if it is not available
+     */
+    public synchronized String getProperty(String columnFamily, String property) {
+        ColumnFamilyHandle cfHandle = this.columnFamilies.get(columnFamily);
+        if (cfHandle == null) {
+            return null;
+        }
+        try {
+            return this.rocksDB.getProperty(cfHandle, property);
+        } catch (RocksDBException e) {
+            log.debug("Rocksdb property {} not available", property, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the column families of a table stored in families of its own, the next use of the table
+     * creates empty ones. Operations still using the dropped families finish on them.
+     *
+     * @return false if the table is stored in the shared column families
+     */
+    public boolean dropTable(String table) {
+        flushWrites();
+        final TableColumnFamilies families;
+        synchronized (tablesLock) {
+            families = tableFamilies.remove(table);
+        }
+        if (families != null) {
+            log.info("Dropping column families of table {}", table);
+            release(families);
+        }
+        return families != null || rocksDbProperties.getTables().containsKey(table);
+    }
+
+    /**
+     * Removes all entries of a table whose key starts with the prefix. Entries and counts are removed with
+     * range deletes, the entries are only scanned to find the chunks of chunked results. The range is
+     * compacted in the background afterwards, so reads do not keep skipping over the deleted records.
+     *
+     * @return the number of removed entries, approximate as entries put meanwhile are not counted
+     */
+    public long invalidate(String table, String keyPrefix) {
+        flushWrites();
+        final Integer tableId = findTableId(table);
+        if (tableId == null) {
+            return 0;
+        }
+        final TableColumnFamilies families = acquire(table);
+        final byte[] begin = CacheKeyCodec.encode(tableId, keyPrefix);
+        final byte[] end = getPrefixEnd(begin);
+        long removed;
+
+        migrationLock.readLock().lock();
+        try {
+            removed = invalidateRange(families, begin, end, null);
+            // digested keys sort after the other keys of the table, their prefix is told by the key kept in the entry
+            if (!keyPrefix.isEmpty()) {
+                removed += invalidateRange(families, CacheKeyCodec.encodeDigest(tableId, EMPTY),
+                        getPrefixEnd(CacheKeyCodec.encode(tableId, EMPTY)), keyPrefix.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            migrationLock.readLock().unlock();
+        }
+
+        compactRange(families, begin, end);
+        return removed;
+    }
+
+    /**
+     * Removes the entries in the range, only those with a kept key starting with the digested key prefix
+     * unless it is null.
+     */
+    private long invalidateRange(TableColumnFamilies families, byte[] begin, byte[] end, byte[] digestedKeyPrefix)
+            throws RocksDBException {
+        // the ttl db silently ignores range deletes, so its records are removed one by one
+        final boolean rangeDeletes = digestedKeyPrefix == null && !(this.rocksDB instanceof TtlDB);
+        long removed = 0;
+
+        try (Slice upperBound = new Slice(end);
+             ReadOptions readOptions = new ReadOptions()
+                     .setIterateUpperBound(upperBound)
+                     .setTotalOrderSeek(true)
+                     .setFillCache(false);
+             RocksIterator itr = this.rocksDB.newIterator(families.getEntries(), readOptions);
+             WriteBatch writeBatch = new WriteBatch()) {
+            for (itr.seek(begin); itr.isValid(); itr.next()) {
+                byte[] keyBytes = itr.key();
+                byte[] value = itr.value();
+                if (digestedKeyPrefix != null && !startsWith(CacheEntryCodec.decodeKey(value), digestedKeyPrefix)) {
+                    continue;
+                }
+                ChunkedResult chunkedResult = CacheEntryCodec.decodeHeader(value).getChunkedResult();
+                if (chunkedResult != null) {
+                    removeChunks(writeBatch, families, keyBytes, chunkedResult);
+                }
+                if (!rangeDeletes) {
+                    writeBatch.remove(families.getEntries(), keyBytes);
+                    writeBatch.remove(families.getCounts(), keyBytes);
+                }
+                removed++;
+                if (writeBatch.count() >= INVALIDATION_BATCH_SIZE) {
+                    this.rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            itr.status();
+            if (rangeDeletes) {
+                writeBatch.deleteRange(families.getEntries(), begin, end);
+                writeBatch.deleteRange(families.getCounts(), begin, end);
+            }
+            this.rocksDB.write(writeOptions, writeBatch);
+        }
+        return removed;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes != null && bytes.length >= prefix.length
+                && ByteBuffer.wrap(bytes, 0, prefix.length).equals(ByteBuffer.wrap(prefix));
+    }
+
+    /**
+     * @return the first key after all keys starting with the prefix
+     */
+    private static byte[] getPrefixEnd(byte[] prefix) {
+        // keys start with a 0 byte, so a byte can always be incremented
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        throw new IllegalArgumentException("Key prefix has no end");
+    }
+
+    /**
+     * Compacts the range of the entries and counts in the background, the families are released when done.
+     */
+    private void compactRange(TableColumnFamilies families, byte[] begin, byte[] end) {
+        try {
+            compactionExecutor.execute(() -> {
+                try {
+                    this.rocksDB.compactRange(families.getEntries(), begin, end);
+                    this.rocksDB.compactRange(families.getCounts(), begin, end);
+                } catch (RocksDBException e) {
+                    log.warn("Error compacting invalidated range of table {}", families.getTable(), e);
+                } finally {
+                    release(families);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(families);
+        }
+    }
+
+    /**
+     * @return the retained families the entries of the table are stored in, they have to be released
+     */
+    private TableColumnFamilies acquire(String table) {
+        while (true) {
+            TableColumnFamilies families = tableFamilies.get(table);
+            if (families == null) {
+                if (!rocksDbProperties.getTables().containsKey(table)) {
+                    return sharedFamilies;
+                }
+                families = createTableFamilies(table);
+            }
+            // a dropped table is no longer in the map, so the next attempt finds or creates its new families
+            if (families.retain()) {
+                return families;
+            }
+        }
+    }
+
+    private Map<String, TableColumnFamilies> acquire(Collection<String> tables) {
+        final Map<String, TableColumnFamilies> families = new HashMap<>();
+        try {
+            for (String table : tables) {
+                if (!families.containsKey(table)) {
+                    families.put(table, acquire(table));
+                }
+            }
+            return families;
+        } catch (RuntimeException e) {
+            release(families.values());
+            throw e;
+        }
+    }
+
+    private void release(TableColumnFamilies families) {
+        if (families.release()) {
+            destroy(families);
+        }
+    }
+
+    private void release(Collection<TableColumnFamilies> families) {
+        families.forEach(this::release);
+    }
+
+    private TableColumnFamilies createTableFamilies(String table) {
+        synchronized (tablesLock) {
+            TableColumnFamilies existing = tableFamilies.get(table);
+            if (existing != null) {
+                return existing;
+            }
+
+            final long generation = tableGenerations.incrementAndGet();
+            final List<AbstractNativeReference> resources = new ArrayList<>();
+            final List<ColumnFamilyHandle> handles = new ArrayList<>();
+            try {
+                for (String kind : TABLE_COLUMN_FAMILIES) {
+                    RocksDbProperties.TableOptions tableOptions = rocksDbProperties.getTableOptions(kind, table);
+                    ColumnFamilyDescriptor descriptor = new ColumnFamilyDescriptor(
+                            getTableFamilyName(kind, generation, table).getBytes(StandardCharsets.UTF_8),
+                            createCfOptions(kind, tableOptions, resources));
+                    handles.add(this.rocksDB instanceof TtlDB
+                            ? ((TtlDB) this.rocksDB).createColumnFamilyWithTtl(descriptor, getTtlSeconds(tableOptions))
+                            : this.rocksDB.createColumnFamily(descriptor));
+                }
+            } catch (RocksDBException e) {
+                handles.addAll(Collections.nCopies(TABLE_COLUMN_FAMILIES.size() - handles.size(), null));
+                destroy(new TableColumnFamilies(table, generation, handles.get(0), handles.get(1), handles.get(2),
+                        handles.get(3), resources));
+                throw new CacheRuntimeException("Rocksdb error", e);
+            }
+
+            TableColumnFamilies families = new TableColumnFamilies(table, generation, handles.get(0), handles.get(1),
+                    handles.get(2), handles.get(3), resources);
+            cfHandlesList.addAll(handles);
+            tableFamilies.put(table, families);
+            log.info("Created column families of table {}", table);
+            return families;
+        }
+    }
+
+    private void destroy(TableColumnFamilies families) {
+        synchronized (this) {
+            // closed with the db
+            if (closed) {
+                return;
+            }
+            for (ColumnFamilyHandle handle : families.getHandles()) {
+                if (handle == null) {
+                    continue;
+                }
+                try {
+                    this.rocksDB.dropColumnFamily(handle);
+                } catch (RocksDBException e) {
+                    log.error("Error dropping column family of table {}", families.getTable(), e);
+                }
+                cfHandlesList.remove(handle);
+                handle.close();
+            }
+        }
+        families.getResources().forEach(AbstractNativeReference::close);
+        log.info("Dropped column families of table {} generation {}", families.getTable(), families.getGeneration());
     }
 
     public CacheEntryResult getResult(String table, String key) {
+        CacheKey cacheKey = new CacheKey(table, key);
+        return getResults(Collections.singletonList(cacheKey)).get(cacheKey);
+    }
+
+    /**
+     * Reads the entries and counts of all keys with a single multiGet.
+     *
+     * @return results in key order, with a null entry for keys that are not cached
+     */
+    public Map<CacheKey, CacheEntryResult> getResults(Collection<CacheKey> cacheKeys) {
+        final Map<String, TableColumnFamilies> families = acquire(cacheKeys.stream()
+                .map(CacheKey::getTable)
+                .collect(Collectors.toList()));
+        final List<ColumnFamilyHandle> cfHandles = new ArrayList<>(cacheKeys.size() * 2);
+        final List<byte[]> keys = new ArrayList<>(cacheKeys.size() * 2);
+        // null for keys of tables that were never put to
+        final List<byte[]> cacheEntryKeys = new ArrayList<>(cacheKeys.size());
+        for (CacheKey cacheKey : cacheKeys) {
+            byte[] cacheEntryKey = findCacheEntryKey(cacheKey.getTable(), cacheKey.getKey());
+            cacheEntryKeys.add(cacheEntryKey);
+            if (cacheEntryKey == null) {
+                continue;
+            }
+            TableColumnFamilies keyFamilies = families.get(cacheKey.getTable());
+            cfHandles.add(keyFamilies.getEntries());
+            keys.add(cacheEntryKey);
+            cfHandles.add(keyFamilies.getCounts());
+            // multiGet results are mapped by key array, so the count key needs an array of its own
+            keys.add(cacheEntryKey.clone());
+        }
+        // taken before reading, a put flushed in between is then still found in one of both
+        final Map<CacheKey, WriteBehindBuffer.PendingPut> pendingPuts = getPendingPuts(cacheKeys);
+
         try {
-            String cacheEntryKey = getCacheEntryKey(table, key);
-            String cacheCountEntryKey = getCacheCountEntryKey(table, key);
-
-            byte[] cacheEntryKeyBytes = cacheEntryKey.getBytes();
-            byte[] countEntryKeyBytes = cacheCountEntryKey.getBytes();
-            Map<byte[], byte[]> cacheValues = this.rocksDB.multiGet(
-                    Arrays.asList(this.columnFamilies.get(COL_ENTRIES), this.columnFamilies.get(COL_COUNTS)),
-                    Arrays.asList(cacheEntryKeyBytes, countEntryKeyBytes)
-            );
-            byte[] cacheEntryValue = cacheValues.get(cacheEntryKeyBytes);
-            byte[] cacheCountEntryValue = cacheValues.get(countEntryKeyBytes);
-
-            return new CacheEntryResult()
-                    .setCacheEntry(Optional.ofNullable(cacheEntryValue)
-                            .map(it -> (CacheEntry) SerializationUtils.deserialize(cacheEntryValue))
-                            .orElse(null))
-                    .setCacheCountEntry(Optional.ofNullable(cacheCountEntryValue)
-                            .map(it2 -> (CacheCountEntry) SerializationUtils.deserialize(it2))
-                            .orElse(null));
+            long start = System.nanoTime();
+            Map<byte[], byte[]> cacheValues = keys.isEmpty() ? Collections.emptyMap()
+                    : this.rocksDB.multiGet(cfHandles, keys);
+            readTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            Map<CacheKey, CacheEntryResult> results = new LinkedHashMap<>();
+            int i = 0;
+            int k = 0;
+            for (CacheKey cacheKey : cacheKeys) {
+                byte[] cacheEntryKeyBytes = cacheEntryKeys.get(i++);
+                byte[] cacheEntryValue = null;
+                byte[] cacheCountEntryValue = null;
+                if (cacheEntryKeyBytes != null) {
+                    cacheEntryValue = cacheValues.get(keys.get(k++));
+                    cacheCountEntryValue = cacheValues.get(keys.get(k++));
+                }
+                // another key with the same digest
+                if (cacheEntryValue != null && CacheKeyCodec.isDigest(cacheEntryKeyBytes) && !Arrays.equals(
+                        CacheEntryCodec.decodeKey(cacheEntryValue), cacheKey.getKey().getBytes(StandardCharsets.UTF_8))) {
+                    cacheEntryValue = null;
+                    cacheCountEntryValue = null;
+                }
+
+                CacheEntryResult result = new CacheEntryResult()
+                        .setCacheEntry(Optional.ofNullable(cacheEntryValue)
+                                .map(it -> decode(getRocksDbKey(cacheKey.getTable(), cacheKey.getKey()), it))
+                                .orElse(null))
+                        .setCacheCountEntry(Optional.ofNullable(cacheCountEntryValue)
+                                .map(CacheEntryCodec::decodeCount)
+                                .orElse(null));
+                WriteBehindBuffer.PendingPut pending = pendingPuts.get(cacheKey);
+                // the count of a pending put was written when it was buffered
+                if (pending != null) {
+                    result.setCacheEntry(pending.getCacheEntry());
+                }
+                results.put(cacheKey, result);
+            }
+            return results;
         } catch (RocksDBException e) {
             throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            release(families.values());
         }
     }
 
-    private ColumnFamilyOptions createCfOptions() {
-        return new ColumnFamilyOptions()
+    private Map<CacheKey, WriteBehindBuffer.PendingPut> getPendingPuts(Collection<CacheKey> cacheKeys) {
+        if (writeBehind == null || writeBehind.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<CacheKey, WriteBehindBuffer.PendingPut> pendingPuts = new HashMap<>();
+        for (CacheKey cacheKey : cacheKeys) {
+            WriteBehindBuffer.PendingPut pending = writeBehind.get(cacheKey);
+            if (pending != null) {
+                pendingPuts.put(cacheKey, pending);
+            }
+        }
+        return pendingPuts;
+    }
+
+    private ColumnFamilyOptions createCfOptions(String kind, RocksDbProperties.TableOptions tableOptions,
+                                                List<AbstractNativeReference> resources) {
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                .setBlockSize(tableOptions.getBlockSize())
+                .setCacheIndexAndFilterBlocks(tableOptions.isCacheIndexAndFilterBlocks())
+                .setPinL0FilterAndIndexBlocksInCache(tableOptions.isPinL0FilterAndIndexBlocksInCache());
+        if (tableOptions.getBlockCacheSize() > 0) {
+            // families of the same kind share a block cache, so the memory does not grow with the number of tables
+            tableConfig.setBlockCache(blockCaches.computeIfAbsent(kind,
+                    it -> new LRUCache(rocksDbProperties.getTableOptions(it).getBlockCacheSize())));
+        } else {
+            tableConfig.setNoBlockCache(true);
+        }
+        if (tableOptions.getBloomBitsPerKey() > 0) {
+            Filter filter = new BloomFilter(tableOptions.getBloomBitsPerKey(), false);
+            resources.add(filter);
+            tableConfig.setFilter(filter);
+        }
+
+        ColumnFamilyOptions options = new ColumnFamilyOptions()
                 .setCompactionPriority(CompactionPriority.MinOverlappingRatio)
                 .optimizeUniversalStyleCompaction()
-                .setLevelCompactionDynamicLevelBytes(true);
+                .setLevelCompactionDynamicLevelBytes(true)
+                .setWriteBufferSize(tableOptions.getWriteBufferSize())
+                .setTableFormatConfig(tableConfig);
+        if (COL_COUNTS.equals(kind)) {
+            options.setMergeOperatorName("uint64add");
+        }
+        if (COL_CHUNKS.equals(kind)) {
+            // chunks are raw result bytes, so they are compressed by rocksdb instead of the entry codec
+            options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+        }
+        if (tableOptions.getPrefixLength() > 0) {
+            options.useFixedLengthPrefixExtractor(tableOptions.getPrefixLength());
+        }
+        if (!tableOptions.getCompressionPerLevel().isEmpty()) {
+            options.setCompressionPerLevel(tableOptions.getCompressionPerLevel());
+        }
+        resources.add(options);
+        return options;
+    }
+
+    private int getTtlSeconds(RocksDbProperties.TableOptions tableOptions) {
+        return tableOptions.getTtlSeconds() > 0 ? tableOptions.getTtlSeconds() : rocksDbProperties.getTtlSeconds();
     }
 
     private DBOptions getDbOptions() {
-        return new DBOptions()
+        DBOptions dbOptions = new DBOptions()
                 .setCreateIfMissing(true)
                 .setCreateMissingColumnFamilies(true)
                 .setMaxBackgroundCompactions(4)
                 .setMaxBackgroundFlushes(2)
-                .setBytesPerSync(1048576);
+                .setBytesPerSync(1048576)
+                .setWalBytesPerSync(rocksDbProperties.getWalBytesPerSync());
+        if (!StringUtils.isEmpty(rocksDbProperties.getWalDir())) {
+            dbOptions.setWalDir(rocksDbProperties.getWalDir());
+        }
+        if (!rocksDbProperties.getDbPaths().isEmpty()) {
+            dbOptions.setDbPaths(rocksDbProperties.getDbPaths().stream()
+                    .map(it -> new DbPath(Paths.get(it.getPath()), it.getTargetSize()))
+                    .collect(Collectors.toList()));
+        }
+        return dbOptions;
     }
 
-    public void putResult(String table, String key, String value,
-                          Long refreshAfterDate,
-                          Long purgeAfterDate,
-                          Integer refreshAfterCount,
-                          Long dateCreated,
-                          CacheCountEntry cacheCountEntry) {
-        try (WriteBatch writeBatch = new WriteBatch()) {
-            String cacheKey = getCacheEntryKey(table, key);
+    /**
+     * Creates the configured directories, failing startup if one cannot be used.
+     */
+    private void validatePaths() {
+        if (StringUtils.isEmpty(rocksDbProperties.getPath())) {
+            throw new IllegalStateException("Rocksdb path is not configured");
+        }
+        List<RocksDbProperties.DbPathOptions> dbPaths = rocksDbProperties.getDbPaths();
+        // checkpoints only link the table files of the db directory
+        if (!dbPaths.isEmpty() && rocksDbProperties.getCheckpoints().isEnabled()) {
+            throw new IllegalStateException("Checkpoints are not supported with db paths");
+        }
+        Set<Path> dataPaths = new HashSet<>();
+        for (int i = 0; i < dbPaths.size(); i++) {
+            RocksDbProperties.DbPathOptions dbPath = dbPaths.get(i);
+            if (StringUtils.isEmpty(dbPath.getPath())) {
+                throw new IllegalStateException("Db path " + i + " has no path");
+            }
+            if (dbPath.getTargetSize() <= 0 && i < dbPaths.size() - 1) {
+                throw new IllegalStateException("Db path " + dbPath.getPath() + " has no target size");
+            }
+            if (!dataPaths.add(Paths.get(dbPath.getPath()).toAbsolutePath().normalize())) {
+                throw new IllegalStateException("Db path " + dbPath.getPath() + " is configured twice");
+            }
+        }
+        for (Path path : getStoragePaths().keySet()) {
+            try {
+                Files.createDirectories(path);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create directory " + path, e);
+            }
+            if (!Files.isWritable(path)) {
+                throw new IllegalStateException("Directory " + path + " is not writable");
+            }
+        }
+    }
+
+    /**
+     * @return the directories of the db by their use, db, wal or data
+     */
+    public Map<Path, String> getStoragePaths() {
+        Map<Path, String> paths = new LinkedHashMap<>();
+        paths.put(Paths.get(rocksDbProperties.getPath()), "db");
+        if (!StringUtils.isEmpty(rocksDbProperties.getWalDir())) {
+            paths.put(Paths.get(rocksDbProperties.getWalDir()), "wal");
+        }
+        rocksDbProperties.getDbPaths().forEach(it -> paths.put(Paths.get(it.getPath()), "data"));
+        return paths;
+    }
+
+    private WriteOptions getWriteOptions() {
+        switch (rocksDbProperties.getDurability()) {
+            case SYNC:
+                return new WriteOptions().setSync(true);
+            case NO_WAL:
+                return new WriteOptions().setDisableWAL(true);
+            default:
+                return new WriteOptions();
+        }
+    }
+
+    /**
+     * Writes all entries in a single write batch, or with write behind enabled buffers them for the next flush.
+     *
+     * @return the stored entries in the order of the puts
+     */
+    public List<CacheEntry> putResults(List<CachePutEntry> putEntries, Long dateCreated) {
+        final List<CacheEntry> cacheEntries = putEntries.stream()
+                .map(it -> new CacheEntry()
+                        .setResult(it.getValue())
+                        .setChunkedResult(it.getChunkedResult())
+                        .setRocksDbKey(getRocksDbKey(it.getTable(), it.getKey()))
+                        .setDateCreated(dateCreated)
+                        .setPurgeAfterDate(it.getPurgeAfterDate())
+                        .setRefreshAfterDate(it.getRefreshAfterDate())
+                        .setRefreshAfterCount(it.getRefreshAfterCount()))
+                .collect(Collectors.toList());
+        if (writeBehind == null) {
+            write(putEntries, cacheEntries, true);
+            return cacheEntries;
+        }
+
+        // written right away, so read counts merged while the put is pending are not reset by its flush
+        writeCounts(putEntries);
+        for (int i = 0; i < putEntries.size(); i++) {
+            WriteBehindBuffer.PendingPut replaced = writeBehind.add(putEntries.get(i), cacheEntries.get(i));
+            // a replaced put is never written, so nothing else removes its chunks
+            ChunkedResult replacedChunks = replaced == null ? null : replaced.getCacheEntry().getChunkedResult();
+            if (replacedChunks != null && !isSameGeneration(replacedChunks, putEntries.get(i).getChunkedResult())) {
+                deleteChunks(replaced.getCacheKey().getTable(), replaced.getCacheKey().getKey(), replacedChunks);
+            }
+        }
+        return cacheEntries;
+    }
 
-            CacheEntry cacheEntry = new CacheEntry()
-                    .setResult(value)
-                    .setRocksDbKey(cacheKey)
-                    .setDateCreated(dateCreated)
-                    .setPurgeAfterDate(purgeAfterDate)
-                    .setRefreshAfterDate(refreshAfterDate)
-                    .setRefreshAfterCount(refreshAfterCount);
+    private static boolean isSameGeneration(ChunkedResult chunkedResult, ChunkedResult other) {
+        return other != null && chunkedResult.getGeneration() == other.getGeneration();
+    }
+
+    /**
+     * Writes the puts buffered by write behind.
+     */
+    public void flushWrites() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    private void flushWritesQuietly() {
+        try {
+            flushWrites();
+        } catch (RuntimeException e) {
+            log.error("Error writing buffered puts", e);
+        }
+    }
+
+    private void write(List<WriteBehindBuffer.PendingPut> puts) {
+        write(puts.stream().map(WriteBehindBuffer.PendingPut::getPutEntry).collect(Collectors.toList()),
+                puts.stream().map(WriteBehindBuffer.PendingPut::getCacheEntry).collect(Collectors.toList()), false);
+    }
+
+    /**
+     * @param writeCounts false for buffered puts, whose counts were written when they were buffered
+     */
+    private void write(List<CachePutEntry> putEntries, List<CacheEntry> cacheEntries, boolean writeCounts) {
+        final Map<String, TableColumnFamilies> families = acquire(putEntries.stream()
+                .map(CachePutEntry::getTable)
+                .collect(Collectors.toList()));
+        migrationLock.readLock().lock();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (int i = 0; i < putEntries.size(); i++) {
+                CachePutEntry putEntry = putEntries.get(i);
+                addPut(writeBatch, families.get(putEntry.getTable()), putEntry, cacheEntries.get(i), writeCounts);
+            }
 
-            writeBatch.put(this.columnFamilies.get(COL_ENTRIES), cacheKey.getBytes(), SerializationUtils.serialize(cacheEntry));
+            long start = System.nanoTime();
+            this.rocksDB.write(writeOptions, writeBatch);
+            writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            migrationLock.readLock().unlock();
+            release(families.values());
+        }
+    }
 
-            if (cacheCountEntry != null) {
-                String countEntryKey = getCacheCountEntryKey(table, key);
-                writeBatch.put(this.columnFamilies.get(COL_COUNTS), countEntryKey.getBytes(), SerializationUtils.serialize(cacheCountEntry));
+    private void writeCounts(List<CachePutEntry> putEntries) {
+        final List<CachePutEntry> countEntries = putEntries.stream()
+                .filter(it -> it.getCacheCountEntry() != null)
+                .collect(Collectors.toList());
+        if (countEntries.isEmpty()) {
+            return;
+        }
+        final Map<String, TableColumnFamilies> families = acquire(countEntries.stream()
+                .map(CachePutEntry::getTable)
+                .collect(Collectors.toList()));
+        migrationLock.readLock().lock();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (CachePutEntry putEntry : countEntries) {
+                writeBatch.put(families.get(putEntry.getTable()).getCounts(),
+                        getCacheEntryKey(putEntry.getTable(), putEntry.getKey()),
+                        CacheEntryCodec.encodeCount(putEntry.getCacheCountEntry()));
             }
 
-            this.rocksDB.write(new WriteOptions(), writeBatch);
+            long start = System.nanoTime();
+            this.rocksDB.write(writeOptions, writeBatch);
+            countWriteTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         } catch (RocksDBException e) {
             throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            migrationLock.readLock().unlock();
+            release(families.values());
+        }
+    }
+
+    private void addPut(WriteBatch writeBatch, TableColumnFamilies families, CachePutEntry putEntry,
+                        CacheEntry cacheEntry, boolean writeCounts) throws RocksDBException {
+        byte[] keyBytes = putEntry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] cacheKeyBytes = getCacheEntryKey(putEntry.getTable(), keyBytes);
+        Long purgeAfterDate = putEntry.getPurgeAfterDate();
+
+        writeBatch.put(families.getEntries(), cacheKeyBytes, encode(cacheEntry, putEntry.getCompression(),
+                CacheKeyCodec.isDigest(cacheKeyBytes) ? keyBytes : null));
+
+        CacheEntry previous = getStoredHeader(families, cacheKeyBytes);
+        long previousPurgeAfterDate = previous == null || previous.getPurgeAfterDate() == null ? 0 : previous.getPurgeAfterDate();
+        if (previous != null && previous.getChunkedResult() != null) {
+            removeChunks(writeBatch, families, cacheKeyBytes, previous.getChunkedResult());
+        }
+        if (previousPurgeAfterDate != 0 && !Objects.equals(previousPurgeAfterDate, purgeAfterDate)) {
+            writeBatch.remove(families.getExpiry(), getExpiryKey(previousPurgeAfterDate, cacheKeyBytes));
+        }
+        if (purgeAfterDate != null && purgeAfterDate != 0) {
+            writeBatch.put(families.getExpiry(), getExpiryKey(purgeAfterDate, cacheKeyBytes), EMPTY);
+        }
+
+        if (writeCounts && putEntry.getCacheCountEntry() != null) {
+            writeBatch.put(families.getCounts(), cacheKeyBytes, CacheEntryCodec.encodeCount(putEntry.getCacheCountEntry()));
+        }
+    }
+
+    private byte[] getCacheEntryKey(String table, String key) {
+        return getCacheEntryKey(table, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the key of the entry, a digest of the key if it is long enough
+     */
+    private byte[] getCacheEntryKey(String table, byte[] keyBytes) {
+        return getCacheEntryKey(getTableId(table), keyBytes);
+    }
+
+    /**
+     * @return the key of the entry, null if nothing was ever put to the table
+     */
+    private byte[] findCacheEntryKey(String table, String key) {
+        Integer tableId = findTableId(table);
+        return tableId == null ? null : getCacheEntryKey(tableId, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] getCacheEntryKey(int tableId, byte[] keyBytes) {
+        int digestMinLength = rocksDbProperties.getKeyDigestMinLength();
+        if (digestMinLength > 0 && keyBytes.length >= digestMinLength) {
+            return CacheKeyCodec.encodeDigest(tableId, rocksDbProperties.getKeyDigest().digest(keyBytes));
         }
+        return CacheKeyCodec.encode(tableId, keyBytes);
+    }
+
+    private byte[] findCacheCountEntryKey(String table, String key) {
+        return findCacheEntryKey(table, key);
+    }
+
+    /**
+     * @return the readable key of an entry, as returned with it
+     */
+    private static String getRocksDbKey(String table, String key) {
+        return table + "." + key;
+    }
+
+    private byte[] getExpiryKey(long purgeAfterDate, byte[] cacheKeyBytes) {
+        return ByteBuffer.allocate(Long.BYTES + cacheKeyBytes.length)
+                .putLong(purgeAfterDate)
+                .put(cacheKeyBytes)
+                .array();
     }
 
-    private String getCacheEntryKey(String table, String key) {
-        return (table + "." + key);
+    private byte[] encode(CacheEntry cacheEntry, ResultCompression compression, byte[] key) {
+        long start = System.nanoTime();
+        byte[] value = CacheEntryCodec.encode(cacheEntry, compression, key);
+        encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return value;
     }
 
-    private String getCacheCountEntryKey(String table, String key) {
-        return (table + "." + key);
+    private CacheEntry decode(String rocksDbKey, byte[] value) {
+        long start = System.nanoTime();
+        CacheEntry cacheEntry = CacheEntryCodec.decode(rocksDbKey, value);
+        decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return cacheEntry;
     }
 
-    private Collection<String> listKeys() {
-        Collection<String> keys = new ArrayList<>();
-        RocksIterator itr = this.rocksDB.newIterator(this.columnFamilies.get(COL_ENTRIES));
-        itr.seekToFirst();
-        while (itr.isValid()) {
-            keys.add(new String(itr.key()));
-            itr.next();
+    static byte[] getChunkKey(byte[] cacheKeyBytes, long generation, int index) {
+        return ByteBuffer.allocate(Integer.BYTES + cacheKeyBytes.length + Long.BYTES + Integer.BYTES)
+                .putInt(cacheKeyBytes.length)
+                .put(cacheKeyBytes)
+                .putLong(generation)
+                .putInt(index)
+                .array();
+    }
+
+    /**
+     * @return the stored entry without its result, null if there is none
+     */
+    private CacheEntry getStoredHeader(TableColumnFamilies families, byte[] cacheKeyBytes) throws RocksDBException {
+        // only the header is copied out of rocksdb
+        byte[] header = new byte[CacheEntryCodec.CHUNKED_HEADER_SIZE];
+        long start = System.nanoTime();
+        int size = this.rocksDB.get(families.getEntries(), cacheKeyBytes, header);
+        headerReadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (size == RocksDB.NOT_FOUND) {
+            return null;
+        }
+        if (CacheEntryCodec.isLegacy(header)) {
+            return CacheEntryCodec.decodeHeader(this.rocksDB.get(families.getEntries(), cacheKeyBytes));
         }
-        itr.close();
-        return keys;
+        return CacheEntryCodec.decodeHeader(header);
     }
 
-    public void putCount(String key, String table, CacheCountEntry cacheCountEntry) {
-        String cacheCountEntryKey = getCacheCountEntryKey(table, key);
+    /**
+     * @return a new chunk generation for an upload of the given entry
+     */
+    public long newChunkGeneration() {
+        return ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+    }
+
+    /**
+     * Stores a chunk of a result, it becomes visible once an entry referencing its generation is put.
+     */
+    public void putChunk(String table, String key, long generation, int index, byte[] chunk) {
+        final TableColumnFamilies families = acquire(table);
         try {
-            this.rocksDB.put(this.columnFamilies.get(COL_COUNTS), cacheCountEntryKey.getBytes(), SerializationUtils.serialize(cacheCountEntry));
+            this.rocksDB.put(families.getChunks(), writeOptions,
+                    getChunkKey(getCacheEntryKey(table, key), generation, index), chunk);
         } catch (RocksDBException e) {
             throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            release(families);
         }
     }
 
-    public Optional<CacheCountEntry> getCount(String key, String table) {
-        String cacheCountEntryKey = getCacheCountEntryKey(table, key);
+    /**
+     * Removes the chunks of an upload that was never put.
+     */
+    public void deleteChunks(String table, String key, ChunkedResult chunkedResult) {
+        final byte[] cacheKeyBytes = findCacheEntryKey(table, key);
+        if (cacheKeyBytes == null) {
+            return;
+        }
+        final TableColumnFamilies families = acquire(table);
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            removeChunks(writeBatch, families, cacheKeyBytes, chunkedResult);
+            this.rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            release(families);
+        }
+    }
+
+    /**
+     * Reads the chunks of a result one at a time from a snapshot, the iterator has to be closed.
+     */
+    public ChunkIterator openChunks(String table, String key, ChunkedResult chunkedResult) {
+        final byte[] cacheKeyBytes = findCacheEntryKey(table, key);
+        if (cacheKeyBytes == null) {
+            throw new CacheEntryChangedException("No entry of table " + table + " was ever put");
+        }
+        // the families stay retained until the iterator is closed
+        final TableColumnFamilies families = acquire(table);
         try {
-            return Optional.ofNullable(this.rocksDB.get(this.columnFamilies.get(COL_COUNTS), cacheCountEntryKey.getBytes()))
-                    .map(it -> (CacheCountEntry) SerializationUtils.deserialize(it));
+            return new ChunkIterator(this.rocksDB, families.getChunks(), cacheKeyBytes,
+                    chunkedResult, () -> release(families));
+        } catch (RuntimeException e) {
+            release(families);
+            throw e;
+        }
+    }
+
+    private void removeChunks(WriteBatch writeBatch, TableColumnFamilies families, byte[] cacheKeyBytes,
+                              ChunkedResult chunkedResult) throws RocksDBException {
+        for (int i = 0; i < chunkedResult.getChunkCount(); i++) {
+            writeBatch.remove(families.getChunks(), getChunkKey(cacheKeyBytes, chunkedResult.getGeneration(), i));
+        }
+    }
+
+    /**
+     * Adds the given read counts with a single write batch of merges.
+     */
+    public void incrementCounts(Map<CacheKey, Integer> increments) {
+        final Map<String, TableColumnFamilies> families = acquire(increments.keySet().stream()
+                .map(CacheKey::getTable)
+                .collect(Collectors.toList()));
+        migrationLock.readLock().lock();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (Map.Entry<CacheKey, Integer> increment : increments.entrySet()) {
+                byte[] cacheCountEntryKey = findCacheCountEntryKey(increment.getKey().getTable(), increment.getKey().getKey());
+                // no entry to count reads of
+                if (cacheCountEntryKey == null) {
+                    continue;
+                }
+                writeBatch.merge(families.get(increment.getKey().getTable()).getCounts(), cacheCountEntryKey,
+                        CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(increment.getValue())));
+            }
+            long start = System.nanoTime();
+            this.rocksDB.write(writeOptions, writeBatch);
+            countWriteTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         } catch (RocksDBException e) {
             throw new CacheRuntimeException("Rocksdb error", e);
+        } finally {
+            migrationLock.readLock().unlock();
+            release(families.values());
         }
     }
 
-    public List<CacheEntry> list() {
-        final Collection<String> keys = listKeys();
-        if (keys.isEmpty()) {
-            return Collections.emptyList();
+    /**
+     * Scans the expiry index up to the given date and deletes the entries it points to,
+     * so the cost depends on the number of expired entries rather than the size of the cache.
+     * Index records left behind by overwritten entries are dropped without touching the entry.
+     *
+     * @return number of purged entries
+     */
+    public long purge(long epochSecond, int batchSize, RateLimiter rateLimiter) {
+        long purged = purge(sharedFamilies, epochSecond, batchSize, rateLimiter);
+        for (TableColumnFamilies families : new ArrayList<>(tableFamilies.values())) {
+            if (!families.retain()) {
+                continue;
+            }
+            try {
+                purged += purge(families, epochSecond, batchSize, rateLimiter);
+            } finally {
+                release(families);
+            }
         }
+        return purged;
+    }
 
-        final List<ColumnFamilyHandle> columnFamilyHandles = Collections.nCopies(keys.size(),
-                this.columnFamilies.get(COL_ENTRIES));
-        final List<byte[]> keyBytes = keys.stream()
-                .map(String::getBytes)
-                .collect(Collectors.toList());
-        final Map<byte[], byte[]> map;
-        try {
-            map = this.rocksDB.multiGet(columnFamilyHandles, keyBytes);
+    private long purge(TableColumnFamilies families, long epochSecond, int batchSize, RateLimiter rateLimiter) {
+        final List<byte[]> expiryKeys = new ArrayList<>(batchSize);
+        long purged = 0;
+
+        try (RocksIterator itr = this.rocksDB.newIterator(families.getExpiry())) {
+            for (itr.seekToFirst(); itr.isValid(); itr.next()) {
+                byte[] expiryKey = itr.key();
+                if (ByteBuffer.wrap(expiryKey).getLong() >= epochSecond) {
+                    break;
+                }
+
+                expiryKeys.add(expiryKey);
+                if (expiryKeys.size() >= batchSize) {
+                    purged += purgeBatch(families, expiryKeys, rateLimiter);
+                    expiryKeys.clear();
+                }
+            }
+            itr.status();
+            purged += purgeBatch(families, expiryKeys, rateLimiter);
         } catch (RocksDBException e) {
             throw new CacheRuntimeException("Rocksdb error", e);
         }
-        return map.values()
-                .stream()
-                .map(it -> (CacheEntry) SerializationUtils.deserialize(it))
+        return purged;
+    }
+
+    private int purgeBatch(TableColumnFamilies families, List<byte[]> expiryKeys, RateLimiter rateLimiter)
+            throws RocksDBException {
+        if (expiryKeys.isEmpty()) {
+            return 0;
+        }
+
+        final ColumnFamilyHandle cfEntry = families.getEntries();
+        final ColumnFamilyHandle cfCount = families.getCounts();
+        final ColumnFamilyHandle cfExpiry = families.getExpiry();
+        final List<byte[]> keys = expiryKeys.stream()
+                .map(it -> Arrays.copyOfRange(it, Long.BYTES, it.length))
                 .collect(Collectors.toList());
+        final Map<byte[], byte[]> entries = this.rocksDB.multiGet(Collections.nCopies(keys.size(), cfEntry), keys);
+
+        int purged = 0;
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] expiryKey = expiryKeys.get(i);
+                byte[] keyBytes = keys.get(i);
+                byte[] value = entries.get(keyBytes);
+
+                writeBatch.remove(cfExpiry, expiryKey);
+                if (value == null) {
+                    continue;
+                }
+                CacheEntry cacheEntry = CacheEntryCodec.decodeHeader(value);
+                if (cacheEntry.getPurgeAfterDate() == ByteBuffer.wrap(expiryKey).getLong()) {
+                    writeBatch.remove(cfEntry, keyBytes);
+                    writeBatch.remove(cfCount, keyBytes);
+                    if (cacheEntry.getChunkedResult() != null) {
+                        removeChunks(writeBatch, families, keyBytes, cacheEntry.getChunkedResult());
+                    }
+                    purged++;
+                }
+            }
+            rateLimiter.acquire(expiryKeys.size());
+            this.rocksDB.write(writeOptions, writeBatch);
+        }
+        return purged;
+    }
+
+    /**
+     * Waits for the background migration of the storage started on startup.
+     */
+    void awaitMigration(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        migration.get(timeout, unit);
     }
 
-    public void delete(Collection<CacheEntry> entries) {
-        final ColumnFamilyHandle cfEntry = this.columnFamilies.get(COL_ENTRIES);
-        final ColumnFamilyHandle cfCount = this.columnFamilies.get(COL_COUNTS);
-        entries.forEach(it -> {
+    /**
+     * Compacts all column families, which drops the records expired by the ttl.
+     */
+    void compactAll() throws RocksDBException {
+        for (ColumnFamilyHandle cfHandle : cfHandlesList) {
+            this.rocksDB.compactRange(cfHandle);
+        }
+    }
+
+    private void migrate(int storageVersion) {
+        try {
+            if (storageVersion < 1) {
+                migrateLegacyRecords();
+            }
+            if (storageVersion < 2 && !Thread.currentThread().isInterrupted()) {
+                backfillExpiryIndex();
+            }
+            if (storageVersion < 3 && !Thread.currentThread().isInterrupted()) {
+                migrateKeys();
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                log.info("Cache storage migration interrupted");
+                return;
+            }
+            this.rocksDB.put(FORMAT_VERSION_KEY, new byte[]{STORAGE_VERSION});
+            log.info("Cache storage migrated from version {} to {}", storageVersion, STORAGE_VERSION);
+        } catch (RocksDBException | RuntimeException e) {
+            log.error("Error migrating cache storage", e);
+        }
+    }
+
+    private void migrateLegacyRecords() throws RocksDBException {
+        log.info("Migrating legacy cache records");
+        long migrated = migrateColumnFamily(COL_ENTRIES, CacheEntryCodec::isLegacy,
+                (key, value) -> CacheEntryCodec.encode(CacheEntryCodec.decode(new String(key), value)));
+        migrated += migrateColumnFamily(COL_COUNTS, CacheEntryCodec::isLegacyCount,
+                (key, value) -> CacheEntryCodec.encodeCount(CacheEntryCodec.decodeCount(value)));
+        log.info("Migrated {} legacy cache records", migrated);
+    }
+
+    private void backfillExpiryIndex() throws RocksDBException {
+        log.info("Building expiry index");
+        final ColumnFamilyHandle cfExpiry = this.columnFamilies.get(COL_EXPIRY);
+        long indexed = 0;
+
+        try (RocksIterator itr = this.rocksDB.newIterator(this.columnFamilies.get(COL_ENTRIES));
+             WriteBatch writeBatch = new WriteBatch()) {
+            for (itr.seekToFirst(); itr.isValid() && !Thread.currentThread().isInterrupted(); itr.next()) {
+                long purgeAfterDate = CacheEntryCodec.decodePurgeAfterDate(itr.value());
+                if (purgeAfterDate == 0) {
+                    continue;
+                }
+                writeBatch.put(cfExpiry, getExpiryKey(purgeAfterDate, itr.key()), EMPTY);
+                indexed++;
+                if (writeBatch.count() >= MIGRATION_BATCH_SIZE) {
+                    this.rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            itr.status();
+            this.rocksDB.write(writeOptions, writeBatch);
+        }
+        log.info("Indexed {} entries by expiry", indexed);
+    }
+
+    /**
+     * Moves the entries stored under {@code table.key} string keys to binary keys, along with their counts,
+     * expiry records and chunks. Entries read in the meantime are misses, entries put again in the meantime
+     * keep the new put.
+     */
+    private void migrateKeys() throws RocksDBException {
+        log.info("Migrating cache keys");
+        long migrated = migrateKeys(sharedFamilies);
+        for (TableColumnFamilies families : new ArrayList<>(tableFamilies.values())) {
+            if (!families.retain()) {
+                continue;
+            }
             try {
-                final byte[] keyBytes = it.getRocksDbKey().getBytes();
-                this.rocksDB.delete(cfEntry, keyBytes);
-                this.rocksDB.delete(cfCount, keyBytes);
-            } catch (RocksDBException e) {
-                throw new CacheRuntimeException("Rocksdb error", e);
+                migrated += migrateKeys(families);
+            } finally {
+                release(families);
+            }
+        }
+        log.info("Migrated {} cache keys", migrated);
+    }
+
+    private long migrateKeys(TableColumnFamilies families) throws RocksDBException {
+        final List<byte[]> legacyKeys = new ArrayList<>();
+        long migrated = 0;
+
+        try (RocksIterator itr = this.rocksDB.newIterator(families.getEntries())) {
+            for (itr.seek(LEGACY_KEYS_START); itr.isValid() && !Thread.currentThread().isInterrupted(); itr.next()) {
+                legacyKeys.add(itr.key());
+                if (legacyKeys.size() >= MIGRATION_BATCH_SIZE) {
+                    migrated += migrateKeyBatch(families, legacyKeys);
+                    legacyKeys.clear();
+                }
             }
-        });
+            itr.status();
+        }
+        if (!legacyKeys.isEmpty()) {
+            migrated += migrateKeyBatch(families, legacyKeys);
+        }
+
+        // counts of entries that were already gone
+        try (RocksIterator itr = this.rocksDB.newIterator(families.getCounts());
+             WriteBatch writeBatch = new WriteBatch()) {
+            for (itr.seek(LEGACY_KEYS_START); itr.isValid() && !Thread.currentThread().isInterrupted(); itr.next()) {
+                writeBatch.remove(families.getCounts(), itr.key());
+                if (writeBatch.count() >= MIGRATION_BATCH_SIZE) {
+                    this.rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            itr.status();
+            this.rocksDB.write(writeOptions, writeBatch);
+        }
+        return migrated;
+    }
+
+    private int migrateKeyBatch(TableColumnFamilies families, List<byte[]> legacyKeys) throws RocksDBException {
+        final List<CacheKey> cacheKeys = legacyKeys.stream()
+                .map(it -> toCacheKey(families, it))
+                .collect(Collectors.toList());
+        final List<byte[]> binaryKeys = cacheKeys.stream()
+                .map(it -> it == null ? null : getCacheEntryKey(it.getTable(), it.getKey()))
+                .collect(Collectors.toList());
+        final List<ColumnFamilyHandle> cfHandles = new ArrayList<>(legacyKeys.size() * 3);
+        final List<byte[]> keys = new ArrayList<>(legacyKeys.size() * 3);
+        final List<byte[]> countKeys = new ArrayList<>(legacyKeys.size());
+        for (int i = 0; i < legacyKeys.size(); i++) {
+            cfHandles.add(families.getEntries());
+            keys.add(legacyKeys.get(i));
+            // multiGet results are mapped by key array, so the count key needs an array of its own
+            countKeys.add(legacyKeys.get(i).clone());
+            cfHandles.add(families.getCounts());
+            keys.add(countKeys.get(i));
+            if (binaryKeys.get(i) != null) {
+                cfHandles.add(families.getEntries());
+                keys.add(binaryKeys.get(i));
+            }
+        }
+
+        migrationLock.writeLock().lock();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            // entries purged since they were read are left alone
+            Map<byte[], byte[]> current = this.rocksDB.multiGet(cfHandles, keys);
+            int migrated = 0;
+            for (int i = 0; i < legacyKeys.size(); i++) {
+                // written between entries, so each write moves whole entries along with their chunks
+                if (writeBatch.getDataSize() >= MIGRATION_BATCH_BYTES) {
+                    this.rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+                byte[] legacyKey = legacyKeys.get(i);
+                byte[] binaryKey = binaryKeys.get(i);
+                byte[] value = current.get(legacyKey);
+                if (value == null) {
+                    continue;
+                }
+
+                CacheEntry cacheEntry = CacheEntryCodec.decodeHeader(value);
+                long purgeAfterDate = cacheEntry.getPurgeAfterDate() == null ? 0 : cacheEntry.getPurgeAfterDate();
+                boolean move = binaryKey != null && current.get(binaryKey) == null;
+                writeBatch.remove(families.getEntries(), legacyKey);
+                writeBatch.remove(families.getCounts(), legacyKey);
+                if (purgeAfterDate != 0) {
+                    writeBatch.remove(families.getExpiry(), getExpiryKey(purgeAfterDate, legacyKey));
+                }
+                if (cacheEntry.getChunkedResult() != null) {
+                    if (move) {
+                        copyChunks(writeBatch, families, legacyKey, binaryKey, cacheEntry.getChunkedResult());
+                    }
+                    removeChunks(writeBatch, families, legacyKey, cacheEntry.getChunkedResult());
+                }
+                if (!move) {
+                    continue;
+                }
+
+                writeBatch.put(families.getEntries(), binaryKey, CacheKeyCodec.isDigest(binaryKey)
+                        ? CacheEntryCodec.withKey(value, cacheKeys.get(i).getKey().getBytes(StandardCharsets.UTF_8))
+                        : value);
+                byte[] count = current.get(countKeys.get(i));
+                if (count != null) {
+                    writeBatch.put(families.getCounts(), binaryKey, count);
+                }
+                if (purgeAfterDate != 0) {
+                    writeBatch.put(families.getExpiry(), getExpiryKey(purgeAfterDate, binaryKey), EMPTY);
+                }
+                migrated++;
+            }
+            this.rocksDB.write(writeOptions, writeBatch);
+            return migrated;
+        } finally {
+            migrationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the table and key of a {@code table.key} string key, null if the table cannot be told
+     */
+    private static CacheKey toCacheKey(TableColumnFamilies families, byte[] legacyKey) {
+        String cacheKey = new String(legacyKey);
+        if (!families.isShared()) {
+            String tablePrefix = families.getTable() + ".";
+            return cacheKey.startsWith(tablePrefix)
+                    ? new CacheKey(families.getTable(), cacheKey.substring(tablePrefix.length()))
+                    : null;
+        }
+        // tables of the shared families are taken to have no dots, keys often do
+        int separator = cacheKey.indexOf('.');
+        return separator > 0 ? new CacheKey(cacheKey.substring(0, separator), cacheKey.substring(separator + 1)) : null;
+    }
+
+    /**
+     * Copies the chunks in the batch that moves their entry, a failed write then leaves no copies behind.
+     */
+    private void copyChunks(WriteBatch writeBatch, TableColumnFamilies families, byte[] legacyKey, byte[] binaryKey,
+                            ChunkedResult chunkedResult) throws RocksDBException {
+        for (int i = 0; i < chunkedResult.getChunkCount(); i++) {
+            byte[] chunk = this.rocksDB.get(families.getChunks(), getChunkKey(legacyKey, chunkedResult.getGeneration(), i));
+            if (chunk != null) {
+                writeBatch.put(families.getChunks(), getChunkKey(binaryKey, chunkedResult.getGeneration(), i), chunk);
+            }
+        }
+    }
+
+    private long migrateColumnFamily(String columnFamily, Predicate<byte[]> isLegacy,
+                                     BiFunction<byte[], byte[], byte[]> encoder) throws RocksDBException {
+        final ColumnFamilyHandle cfHandle = this.columnFamilies.get(columnFamily);
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        long migrated = 0;
+
+        try (RocksIterator itr = this.rocksDB.newIterator(cfHandle)) {
+            for (itr.seekToFirst(); itr.isValid() && !Thread.currentThread().isInterrupted(); itr.next()) {
+                byte[] value = itr.value();
+                if (!isLegacy.test(value)) {
+                    continue;
+                }
+                keys.add(itr.key());
+                values.add(value);
+                if (keys.size() >= MIGRATION_BATCH_SIZE) {
+                    migrated += migrateBatch(cfHandle, keys, values, encoder);
+                    keys.clear();
+                    values.clear();
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            migrated += migrateBatch(cfHandle, keys, values, encoder);
+        }
+        return migrated;
+    }
+
+    private int migrateBatch(ColumnFamilyHandle cfHandle, List<byte[]> keys, List<byte[]> values,
+                             BiFunction<byte[], byte[], byte[]> encoder) throws RocksDBException {
+        migrationLock.writeLock().lock();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            // records rewritten since they were read are left alone
+            Map<byte[], byte[]> current = this.rocksDB.multiGet(Collections.nCopies(keys.size(), cfHandle), keys);
+            for (int i = 0; i < keys.size(); i++) {
+                if (Arrays.equals(values.get(i), current.get(keys.get(i)))) {
+                    writeBatch.put(cfHandle, keys.get(i), encoder.apply(keys.get(i), values.get(i)));
+                }
+            }
+            this.rocksDB.write(writeOptions, writeBatch);
+            return writeBatch.count();
+        } finally {
+            migrationLock.writeLock().unlock();
+        }
     }
 }
@@ -0,0 +1,171 @@
+package com.flair.caching.flaircaching.repositories;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.Checkpoint;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Consistent copies of the db in a local directory, to start a new cache directory warm. A checkpoint
+ * hard links the table files of the db where the directory is on the same file system, so creating one
+ * costs little disk until the db compacts the linked files away. Checkpoints are created under a
+ * temporary name and renamed once complete, so a crash never leaves a partial one to restore.
+ */
+@Slf4j
+final class Checkpoints {
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOG_SUFFIX = ".log";
+    private static final Pattern NAME = Pattern.compile(PREFIX + "\\d+");
+
+    private final Path dir;
+    private final int retained;
+    // creation time in the name of the last checkpoint, names stay unique within a millisecond
+    private long lastCreated = -1;
+
+    Checkpoints(Path dir, int retained) {
+        this.dir = dir;
+        this.retained = retained;
+    }
+
+    /**
+     * Creates a checkpoint of the db and removes the oldest ones beyond the retained number.
+     *
+     * @return the directory of the checkpoint
+     */
+    synchronized Path create(RocksDB db) throws RocksDBException, IOException {
+        Files.createDirectories(dir);
+        if (lastCreated < 0) {
+            List<Path> checkpoints = list();
+            lastCreated = checkpoints.isEmpty() ? 0 : getCreated(checkpoints.get(checkpoints.size() - 1));
+        }
+        lastCreated = Math.max(System.currentTimeMillis(), lastCreated + 1);
+        String name = PREFIX + lastCreated;
+        Path tmp = dir.resolve(name + TMP_SUFFIX);
+        Path target = dir.resolve(name);
+        deleteRecursively(tmp);
+        try (Checkpoint checkpoint = Checkpoint.create(db)) {
+            checkpoint.createCheckpoint(tmp.toString());
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Path> checkpoints = list();
+        for (Path old : checkpoints.subList(0, Math.max(0, checkpoints.size() - retained))) {
+            log.info("Removing checkpoint {}", old);
+            deleteRecursively(old);
+        }
+        return target;
+    }
+
+    /**
+     * Fills the empty db directory with the latest checkpoint, see {@link #restoreLatest(Path, Path)}.
+     */
+    Path restoreLatest(Path dbPath) throws IOException {
+        return restoreLatest(dbPath, dbPath);
+    }
+
+    /**
+     * Fills the empty db directory with the latest checkpoint. Table files are hard linked, as rocksdb never
+     * modifies them, all other files are copied. The write ahead logs of the checkpoint go to the wal directory,
+     * where rocksdb replays them from, replacing the logs left there by an earlier db.
+     *
+     * @return the restored checkpoint, null if there is none
+     */
+    Path restoreLatest(Path dbPath, Path walPath) throws IOException {
+        List<Path> checkpoints = list();
+        if (checkpoints.isEmpty()) {
+            return null;
+        }
+        Path latest = checkpoints.get(checkpoints.size() - 1);
+        Path tmp = dbPath.resolveSibling(dbPath.getFileName() + TMP_SUFFIX);
+        deleteRecursively(tmp);
+        Files.createDirectories(tmp);
+        boolean separateWal = !walPath.toAbsolutePath().normalize().equals(dbPath.toAbsolutePath().normalize());
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(latest)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (separateWal && fileName.endsWith(LOG_SUFFIX)) {
+                    logs.add(file);
+                    continue;
+                }
+                Path target = tmp.resolve(fileName);
+                if (fileName.endsWith(".sst") && link(target, file)) {
+                    continue;
+                }
+                Files.copy(file, target);
+            }
+        }
+        if (separateWal) {
+            Files.createDirectories(walPath);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(walPath, "*" + LOG_SUFFIX)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            for (Path file : logs) {
+                Files.copy(file, walPath.resolve(file.getFileName().toString()));
+            }
+        }
+        deleteRecursively(dbPath);
+        Files.move(tmp, dbPath, StandardCopyOption.ATOMIC_MOVE);
+        return latest;
+    }
+
+    private static boolean link(Path link, Path file) {
+        try {
+            Files.createLink(link, file);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // another file system, copied instead
+            return false;
+        }
+    }
+
+    /**
+     * @return the complete checkpoints, oldest first
+     */
+    List<Path> list() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        List<Path> checkpoints = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+            for (Path path : paths) {
+                if (NAME.matcher(path.getFileName().toString()).matches()) {
+                    checkpoints.add(path);
+                }
+            }
+        }
+        checkpoints.sort(Comparator.comparingLong(Checkpoints::getCreated));
+        return checkpoints;
+    }
+
+    private static long getCreated(Path checkpoint) {
+        return Long.parseLong(checkpoint.getFileName().toString().substring(PREFIX.length()));
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path it : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(it);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.flair.caching.flaircaching.repositories;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Snapshot;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the chunks of a result from a snapshot, so the chunks stay readable while the entry is overwritten.
+ */
+public class ChunkIterator implements Iterator<byte[]>, AutoCloseable {
+
+    private final RocksDB rocksDB;
+    private final ColumnFamilyHandle cfChunks;
+    private final byte[] cacheKeyBytes;
+    private final ChunkedResult chunkedResult;
+    private final Snapshot snapshot;
+    private final ReadOptions readOptions;
+    private final Runnable onClose;
+    private int index;
+
+    ChunkIterator(RocksDB rocksDB, ColumnFamilyHandle cfChunks, byte[] cacheKeyBytes, ChunkedResult chunkedResult,
+                  Runnable onClose) {
+        this.rocksDB = rocksDB;
+        this.cfChunks = cfChunks;
+        this.cacheKeyBytes = cacheKeyBytes;
+        this.chunkedResult = chunkedResult;
+        this.snapshot = rocksDB.getSnapshot();
+        this.readOptions = new ReadOptions().setSnapshot(snapshot);
+        this.onClose = onClose;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return index < chunkedResult.getChunkCount();
+    }
+
+    /**
+     * @throws CacheEntryChangedException if the entry was overwritten or purged before the snapshot was taken
+     */
+    @Override
+    public byte[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            byte[] chunk = rocksDB.get(cfChunks, readOptions,
+                    CacheRepository.getChunkKey(cacheKeyBytes, chunkedResult.getGeneration(), index));
+            if (chunk == null) {
+                throw new CacheEntryChangedException("Chunk " + index + " of generation "
+                        + chunkedResult.getGeneration() + " no longer exists");
+            }
+            index++;
+            return chunk;
+        } catch (RocksDBException e) {
+            throw new CacheRuntimeException("Rocksdb error", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        readOptions.close();
+        rocksDB.releaseSnapshot(snapshot);
+        onClose.run();
+    }
+}
@@ -0,0 +1,16 @@
+package com.flair.caching.flaircaching.repositories;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Location of a result stored as chunks rather than inline in its cache entry.
+ * Each upload writes its chunks under a new generation, so readers of the previous generation are not affected.
+ */
+@Data
+@Accessors(chain = true)
+public class ChunkedResult {
+    private long generation;
+    private int chunkCount;
+    private long length;
+}
@@ -0,0 +1,24 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Digest long keys are stored under, reads are verified against the key kept in the entry.
+ */
+public enum KeyDigest {
+
+    MURMUR3_128(Hashing.murmur3_128()),
+
+    SHA_256(Hashing.sha256());
+
+    private final HashFunction hashFunction;
+
+    KeyDigest(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    byte[] digest(byte[] key) {
+        return hashFunction.hashBytes(key).asBytes();
+    }
+}
@@ -0,0 +1,79 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.util.Arrays;
+
+/**
+ * Compression applied to the result of a cache entry, the id is kept in the entry flags.
+ */
+public enum ResultCompression {
+
+    NONE(0) {
+        @Override
+        byte[] compress(byte[] value) {
+            return value;
+        }
+
+        @Override
+        byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+            return Arrays.copyOfRange(src, offset, offset + length);
+        }
+    },
+
+    LZ4(1) {
+        @Override
+        byte[] compress(byte[] value) {
+            return LZ4Factory.fastestInstance().fastCompressor().compress(value);
+        }
+
+        @Override
+        byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+            return LZ4Factory.fastestInstance().fastDecompressor().decompress(src, offset, originalLength);
+        }
+    },
+
+    ZSTD(2) {
+        private static final int LEVEL = 3;
+
+        @Override
+        byte[] compress(byte[] value) {
+            return Zstd.compress(value, LEVEL);
+        }
+
+        @Override
+        byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+            byte[] value = new byte[originalLength];
+            long size = Zstd.decompressByteArray(value, 0, originalLength, src, offset, length);
+            if (Zstd.isError(size) || size != originalLength) {
+                throw new CacheRuntimeException("Corrupted zstd cache entry "
+                        + (Zstd.isError(size) ? Zstd.getErrorName(size) : "of size " + size));
+            }
+            return value;
+        }
+    };
+
+    private final int id;
+
+    ResultCompression(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    abstract byte[] compress(byte[] value);
+
+    abstract byte[] decompress(byte[] src, int offset, int length, int originalLength);
+
+    static ResultCompression of(int id) {
+        for (ResultCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new CacheRuntimeException("Unsupported cache entry compression " + id);
+    }
+}
@@ -0,0 +1,132 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang.math.NumberUtils;
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
+import org.rocksdb.TickerType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+/**
+ * Exposes rocksdb statistics and column family properties as meters, they are read from rocksdb
+ * whenever the registry is scraped. Histograms cover the whole lifetime of the db. The space of the db,
+ * wal and data directories is read from the file system.
+ */
+@Component
+public class RocksDbMetrics {
+
+    private static final int LEVELS = 7;
+
+    private static final List<String> COLUMN_FAMILIES = Arrays.asList(
+            CacheRepository.COL_ENTRIES,
+            CacheRepository.COL_COUNTS,
+            CacheRepository.COL_EXPIRY,
+            CacheRepository.COL_CHUNKS);
+
+    private static final Map<String, TickerType> TICKERS = ImmutableMap.<String, TickerType>builder()
+            .put("rocksdb.block.cache.hits", TickerType.BLOCK_CACHE_HIT)
+            .put("rocksdb.block.cache.misses", TickerType.BLOCK_CACHE_MISS)
+            .put("rocksdb.bloom.filter.useful", TickerType.BLOOM_FILTER_USEFUL)
+            .put("rocksdb.memtable.hits", TickerType.MEMTABLE_HIT)
+            .put("rocksdb.memtable.misses", TickerType.MEMTABLE_MISS)
+            .put("rocksdb.keys.read", TickerType.NUMBER_KEYS_READ)
+            .put("rocksdb.keys.written", TickerType.NUMBER_KEYS_WRITTEN)
+            .put("rocksdb.bytes.read", TickerType.BYTES_READ)
+            .put("rocksdb.bytes.written", TickerType.BYTES_WRITTEN)
+            .put("rocksdb.stall.micros", TickerType.STALL_MICROS)
+            .build();
+
+    private static final Map<String, HistogramType> HISTOGRAMS = ImmutableMap.of(
+            "rocksdb.get.micros", HistogramType.DB_GET,
+            "rocksdb.write.micros", HistogramType.DB_WRITE);
+
+    private static final Map<String, String> PROPERTIES = ImmutableMap.of(
+            "rocksdb.compaction.pending.bytes", "rocksdb.estimate-pending-compaction-bytes",
+            "rocksdb.live.data.bytes", "rocksdb.estimate-live-data-size",
+            "rocksdb.memtable.bytes", "rocksdb.cur-size-all-mem-tables",
+            "rocksdb.keys.estimated", "rocksdb.estimate-num-keys");
+
+    public RocksDbMetrics(CacheRepository cacheRepository, MeterRegistry meterRegistry) {
+        TICKERS.forEach((name, tickerType) -> FunctionCounter
+                .builder(name, cacheRepository, it -> it.getTickerCount(tickerType))
+                .register(meterRegistry));
+
+        HISTOGRAMS.forEach((name, histogramType) -> {
+            registerQuantile(meterRegistry, cacheRepository, name, histogramType, "0.5", HistogramData::getMedian);
+            registerQuantile(meterRegistry, cacheRepository, name, histogramType, "0.95", HistogramData::getPercentile95);
+            registerQuantile(meterRegistry, cacheRepository, name, histogramType, "0.99", HistogramData::getPercentile99);
+        });
+
+        for (String columnFamily : COLUMN_FAMILIES) {
+            PROPERTIES.forEach((name, property) -> Gauge
+                    .builder(name, cacheRepository, it -> it.getLongProperty(columnFamily, property))
+                    .tag("cf", columnFamily)
+                    .register(meterRegistry));
+
+            for (int level = 0; level < LEVELS; level++) {
+                String property = "rocksdb.num-files-at-level" + level;
+                // not an integer property, so it is read as a string
+                Gauge.builder("rocksdb.sst.files", cacheRepository, it -> NumberUtils.toDouble(
+                        it.getProperty(columnFamily, property), Double.NaN))
+                        .tag("cf", columnFamily)
+                        .tag("level", String.valueOf(level))
+                        .register(meterRegistry);
+            }
+        }
+
+        cacheRepository.getStoragePaths().forEach((path, kind) -> {
+            Gauge.builder("rocksdb.path.used.bytes", path, RocksDbMetrics::getUsedBytes)
+                    .tag("path", path.toString())
+                    .tag("kind", kind)
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            Gauge.builder("rocksdb.path.free.bytes", path, RocksDbMetrics::getFreeBytes)
+                    .tag("path", path.toString())
+                    .tag("kind", kind)
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+        });
+    }
+
+    private static double getUsedBytes(Path path) {
+        // rocksdb keeps its files directly in the directory
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(it -> it.toFile().length())
+                    .sum();
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double getFreeBytes(Path path) {
+        try {
+            return Files.getFileStore(path).getUsableSpace();
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static void registerQuantile(MeterRegistry meterRegistry, CacheRepository cacheRepository, String name,
+                                         HistogramType histogramType, String quantile,
+                                         ToDoubleFunction<HistogramData> value) {
+        Gauge.builder(name, cacheRepository, it -> {
+            HistogramData histogramData = it.getHistogramData(histogramType);
+            return histogramData == null ? Double.NaN : value.applyAsDouble(histogramData);
+        })
+                .tag("quantile", quantile)
+                .register(meterRegistry);
+    }
+}
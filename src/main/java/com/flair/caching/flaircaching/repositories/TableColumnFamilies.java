@@ -0,0 +1,76 @@
+package com.flair.caching.flaircaching.repositories;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.ColumnFamilyHandle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The column families holding the entries of a table with families of its own, or of all other tables.
+ * Operations retain the families while they use them, the families of a dropped table are only
+ * removed once the last operation has released them.
+ */
+@Getter(AccessLevel.PACKAGE)
+final class TableColumnFamilies {
+
+    // null for the shared families
+    private final String table;
+    private final long generation;
+    private final ColumnFamilyHandle entries;
+    private final ColumnFamilyHandle counts;
+    private final ColumnFamilyHandle expiry;
+    private final ColumnFamilyHandle chunks;
+    // the options and filters the families were created with, closed once the families are
+    private final List<AbstractNativeReference> resources;
+    // starts with the reference of the repository, shared families are never released
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    TableColumnFamilies(String table, long generation, ColumnFamilyHandle entries, ColumnFamilyHandle counts,
+                        ColumnFamilyHandle expiry, ColumnFamilyHandle chunks, List<AbstractNativeReference> resources) {
+        this.table = table;
+        this.generation = generation;
+        this.entries = entries;
+        this.counts = counts;
+        this.expiry = expiry;
+        this.chunks = chunks;
+        this.resources = resources;
+    }
+
+    List<ColumnFamilyHandle> getHandles() {
+        return Arrays.asList(entries, counts, expiry, chunks);
+    }
+
+    boolean isShared() {
+        return table == null;
+    }
+
+    /**
+     * @return false if the families were already released for good
+     */
+    boolean retain() {
+        if (isShared()) {
+            return true;
+        }
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if this was the last reference, the families are then no longer used
+     */
+    boolean release() {
+        return !isShared() && references.decrementAndGet() == 0;
+    }
+}
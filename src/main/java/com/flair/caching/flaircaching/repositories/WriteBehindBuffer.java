@@ -0,0 +1,109 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Puts acknowledged before they are written. The pending puts are written as one write batch per flush,
+ * a put that finds the buffer full flushes it first, so writers are held back once the disk falls behind.
+ * Until a put is written, reads of its key are served from here, and a newer put of the same key replaces it.
+ * Puts that failed to be written {@link #MAX_FAILED_FLUSHES} flushes in a row are dropped.
+ */
+@Slf4j
+final class WriteBehindBuffer {
+
+    // rough per put cost of the map node and holder
+    private static final int PUT_OVERHEAD = 128;
+    static final int MAX_FAILED_FLUSHES = 3;
+
+    private final long maxBytes;
+    private final Consumer<List<PendingPut>> writer;
+    private final ConcurrentMap<CacheKey, PendingPut> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // one flush at a time, so an older write batch never lands after a newer one
+    private final Object flushLock = new Object();
+    // guarded by flushLock
+    private int failedFlushes;
+
+    WriteBehindBuffer(long maxBytes, Consumer<List<PendingPut>> writer) {
+        this.maxBytes = maxBytes;
+        this.writer = writer;
+    }
+
+    /**
+     * @return the pending put replaced by this one, null if there was none
+     */
+    PendingPut add(CachePutEntry putEntry, CacheEntry cacheEntry) {
+        // flushed before the put is taken, a failed flush then fails the put instead of leaving it readable
+        if (pendingBytes.get() >= maxBytes) {
+            flush();
+        }
+        PendingPut put = new PendingPut(new CacheKey(putEntry.getTable(), putEntry.getKey()), putEntry, cacheEntry);
+        PendingPut replaced = pending.put(put.getCacheKey(), put);
+        pendingBytes.addAndGet(put.getSize() - (replaced == null ? 0 : replaced.getSize()));
+        return replaced;
+    }
+
+    PendingPut get(CacheKey cacheKey) {
+        return pending.get(cacheKey);
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    void flush() {
+        synchronized (flushLock) {
+            List<PendingPut> puts = new ArrayList<>(pending.values());
+            if (puts.isEmpty()) {
+                return;
+            }
+            try {
+                writer.accept(puts);
+            } catch (RuntimeException e) {
+                if (++failedFlushes >= MAX_FAILED_FLUSHES) {
+                    log.error("Dropping {} buffered puts after {} failed writes", puts.size(), failedFlushes);
+                    failedFlushes = 0;
+                    remove(puts);
+                }
+                throw e;
+            }
+            failedFlushes = 0;
+            remove(puts);
+        }
+    }
+
+    private void remove(List<PendingPut> puts) {
+        for (PendingPut put : puts) {
+            // a put that replaced a written one stays for the next flush
+            if (pending.remove(put.getCacheKey(), put)) {
+                pendingBytes.addAndGet(-put.getSize());
+            }
+        }
+    }
+
+    @Value
+    static class PendingPut {
+        private final CacheKey cacheKey;
+        private final CachePutEntry putEntry;
+        private final CacheEntry cacheEntry;
+
+        long getSize() {
+            return PUT_OVERHEAD + cacheKey.getKey().length()
+                    + (putEntry.getValue() == null ? 0 : putEntry.getValue().length);
+        }
+    }
+}
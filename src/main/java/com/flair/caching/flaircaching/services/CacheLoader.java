@@ -0,0 +1,16 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+
+/**
+ * Recomputes entries that are due for a refresh, so the cache can refresh read entries itself
+ * instead of leaving that to the next caller. Called from the loader threads of {@link CacheRefresher}.
+ */
+public interface CacheLoader {
+
+    /**
+     * @return the recomputed entry, its table and key are set by the caller, or null if the entry
+     * is not to be refreshed
+     */
+    CachePutEntry load(String table, String key);
+}
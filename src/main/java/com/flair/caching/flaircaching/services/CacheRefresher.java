@@ -0,0 +1,145 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import com.flair.caching.flaircaching.utils.TableTags;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Refreshes entries in the background through the configured {@link CacheLoader}. Loads run on a bounded
+ * pool, limited per table to the configured loads per second, and a key is only loaded once at a time.
+ * A refresh that cannot be started is left to the caller. Tables beyond the metrics table bound share the
+ * rate limit of the {@code other} tag, unless their limit is configured.
+ */
+@Slf4j
+@Component
+public class CacheRefresher {
+
+    private static final String RESULT_LOADED = "loaded";
+    private static final String RESULT_EMPTY = "empty";
+    private static final String RESULT_FAILED = "failed";
+    private static final String RESULT_RATE_LIMITED = "rate_limited";
+    private static final String RESULT_REJECTED = "rejected";
+
+    // null unless a loader is configured
+    private final CacheLoader cacheLoader;
+    private final CacheProperties.Loader loaderProperties;
+    private final MeterRegistry meterRegistry;
+    private final ExecutorService loaderExecutor;
+    private final Set<CacheKey> loading = ConcurrentHashMap.newKeySet();
+    private final TableTags tableTags;
+    // by configured table or table tag
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    // by table tag and result
+    private final ConcurrentMap<List<String>, Counter> loadCounters = new ConcurrentHashMap<>();
+
+    public CacheRefresher(Optional<CacheLoader> cacheLoader, CacheProperties cacheProperties,
+                          MeterRegistry meterRegistry) {
+        this.cacheLoader = cacheLoader.orElse(null);
+        this.loaderProperties = cacheProperties.getLoader();
+        this.meterRegistry = meterRegistry;
+        this.tableTags = new TableTags(cacheProperties.getMetrics().getMaxTables());
+        this.loaderExecutor = ExecutorServiceMetrics.monitor(meterRegistry, new ThreadPoolExecutor(
+                loaderProperties.getThreads(), loaderProperties.getThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(loaderProperties.getQueueSize()),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("cache-loader-%d")
+                        .setDaemon(true)
+                        .build()), "cache.loader");
+        log.info("Cache loader {}", this.cacheLoader == null ? "disabled" : this.cacheLoader.getClass().getSimpleName());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loaderExecutor.shutdownNow();
+    }
+
+    /**
+     * Starts loading the key, the loaded entry is handed to the writer on a loader thread. The refresh lease of
+     * the caller is ended through release when nothing is written: the key is already being loaded under an
+     * earlier lease, the loader found nothing or failed, or the write failed.
+     *
+     * @return false if no loader is configured, or the load was not started because of the limits
+     */
+    boolean refresh(CacheKey key, Consumer<CachePutEntry> writer, Runnable release) {
+        if (cacheLoader == null) {
+            return false;
+        }
+        if (!loading.add(key)) {
+            release.run();
+            return true;
+        }
+        if (!getRateLimiter(key.getTable()).tryAcquire()) {
+            loading.remove(key);
+            countLoad(key.getTable(), RESULT_RATE_LIMITED);
+            return false;
+        }
+        try {
+            loaderExecutor.execute(() -> load(key, writer, release));
+            return true;
+        } catch (RejectedExecutionException e) {
+            loading.remove(key);
+            countLoad(key.getTable(), RESULT_REJECTED);
+            return false;
+        }
+    }
+
+    private void load(CacheKey key, Consumer<CachePutEntry> writer, Runnable release) {
+        try {
+            CachePutEntry putEntry = cacheLoader.load(key.getTable(), key.getKey());
+            if (putEntry == null) {
+                release.run();
+                countLoad(key.getTable(), RESULT_EMPTY);
+                return;
+            }
+            writer.accept(putEntry.setTable(key.getTable())
+                    .setKey(key.getKey()));
+            countLoad(key.getTable(), RESULT_LOADED);
+        } catch (RuntimeException e) {
+            log.warn("Error loading table {} key {}", key.getTable(), key.getKey(), e);
+            release.run();
+            countLoad(key.getTable(), RESULT_FAILED);
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    private RateLimiter getRateLimiter(String table) {
+        String limited = loaderProperties.getTables().containsKey(table) ? table : tableTags.get(table);
+        return rateLimiters.computeIfAbsent(limited, it -> {
+            double maxLoadsPerSecond = loaderProperties.getTables().getOrDefault(it, loaderProperties.getMaxLoadsPerSecond());
+            return RateLimiter.create(maxLoadsPerSecond > 0 ? maxLoadsPerSecond : Double.MAX_VALUE);
+        });
+    }
+
+    private void countLoad(String table, String result) {
+        String tableTag = tableTags.get(table);
+        loadCounters.computeIfAbsent(Arrays.asList(tableTag, result), it -> Counter.builder("cache.loader.loads")
+                .tag("table", tableTag)
+                .tag("result", result)
+                .description("Background loads by result")
+                .register(meterRegistry))
+                .increment();
+    }
+}
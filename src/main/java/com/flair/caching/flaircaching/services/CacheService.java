@@ -1,78 +1,216 @@
 package com.flair.caching.flaircaching.services;
 
+import com.flair.caching.flaircaching.config.CacheProperties;
 import com.flair.caching.flaircaching.dto.CacheCountEntry;
 import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
 import com.flair.caching.flaircaching.repositories.CacheEntry;
 import com.flair.caching.flaircaching.repositories.CacheEntryResult;
 import com.flair.caching.flaircaching.repositories.CacheRepository;
+import com.flair.caching.flaircaching.repositories.ChunkIterator;
+import com.flair.caching.flaircaching.repositories.ChunkedResult;
+import com.flair.caching.flaircaching.repositories.ResultCompression;
 import com.flair.caching.flaircaching.utils.BooleanCondition;
-import lombok.RequiredArgsConstructor;
+import com.flair.caching.flaircaching.utils.TableTags;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class CacheService {
 
+    private static final String RESULT_HIT = "hit";
+    private static final String RESULT_MISS = "miss";
+    private static final String RESULT_STALE_DATE = "stale_date";
+    private static final String RESULT_STALE_COUNT = "stale_count";
+    private static final String RESULT_REFRESH_AHEAD = "refresh_ahead";
+
     private final CacheRepository cacheRepository;
+    private final HotCache hotCache;
+    private final CountAggregator countAggregator;
+    private final RefreshLeases refreshLeases;
+    private final CacheRefresher cacheRefresher;
+    private final CacheProperties cacheProperties;
     private final Clock clock;
+    private final MeterRegistry meterRegistry;
+    private final TableTags tableTags;
+    // by table tag and result
+    private final ConcurrentMap<List<String>, Counter> getCounters = new ConcurrentHashMap<>();
+    private final SingleFlight<CacheKey, CacheEntryResult> repositoryReads;
+
+    public CacheService(CacheRepository cacheRepository, HotCache hotCache, CountAggregator countAggregator,
+                        RefreshLeases refreshLeases, CacheRefresher cacheRefresher, CacheProperties cacheProperties,
+                        Clock clock, MeterRegistry meterRegistry) {
+        this.cacheRepository = cacheRepository;
+        this.hotCache = hotCache;
+        this.countAggregator = countAggregator;
+        this.refreshLeases = refreshLeases;
+        this.cacheRefresher = cacheRefresher;
+        this.cacheProperties = cacheProperties;
+        this.clock = clock;
+        this.meterRegistry = meterRegistry;
+        this.tableTags = new TableTags(cacheProperties.getMetrics().getMaxTables());
+        this.repositoryReads = new SingleFlight<>(Counter.builder("cache.requests.coalesced")
+                .description("Gets that shared the repository read of a concurrent get for the same key")
+                .register(meterRegistry));
+    }
 
     public Optional<CacheEntryWrapper> getResult(String table, String key) {
-        log.info("Get table {} key {}", table, key);
-        CacheEntryResult cacheEntryResult = cacheRepository.getResult(table, key);
+        log.debug("Get table {} key {}", table, key);
+        CacheKey cacheKey = new CacheKey(table, key);
+        HotCacheEntry hotCacheEntry = hotCache.get(cacheKey, it -> repositoryReads.execute(it,
+                () -> countAggregator.withPending(it, cacheRepository.getResult(table, key))));
+
+        return toCacheEntryWrapper(cacheKey, hotCacheEntry);
+    }
+
+    /**
+     * Batch variant of {@link #getResult(String, String)}, entries missing from the hot tier
+     * are read from the repository with a single lookup.
+     *
+     * @return results by key, in the order of the given keys
+     */
+    public Map<CacheKey, Optional<CacheEntryWrapper>> getResults(List<CacheKey> cacheKeys) {
+        log.debug("Get batch of {} keys", cacheKeys.size());
+        Map<CacheKey, HotCacheEntry> hotCacheEntries = hotCache.getAll(cacheKeys, keys -> {
+            Map<CacheKey, CacheEntryResult> results = cacheRepository.getResults(keys);
+            results.forEach(countAggregator::withPending);
+            return results;
+        });
+
+        Map<CacheKey, Optional<CacheEntryWrapper>> results = new LinkedHashMap<>();
+        for (CacheKey cacheKey : cacheKeys) {
+            results.computeIfAbsent(cacheKey, it -> toCacheEntryWrapper(it, hotCacheEntries.get(it)));
+        }
+        return results;
+    }
 
-        if (cacheEntryResult.getCacheEntry() == null) {
-            log.info("Get value table {} key {} null", table, key);
+    private Optional<CacheEntryWrapper> toCacheEntryWrapper(CacheKey cacheKey, HotCacheEntry hotCacheEntry) {
+        String table = cacheKey.getTable();
+        String key = cacheKey.getKey();
+
+        if (hotCacheEntry == null) {
+            log.debug("Get value table {} key {} null", table, key);
+            countGet(table, RESULT_MISS);
             return Optional.empty();
         }
 
-        log.debug("Get value table {} key {} value {}", table, key, cacheEntryResult);
+        CacheEntry cacheEntry = hotCacheEntry.getCacheEntry();
 
-        CacheEntry cacheEntry = cacheEntryResult.getCacheEntry();
-        CacheCountEntry cacheCountEntry = cacheEntryResult.getCacheCountEntry();
+        // expired entries stay on disk until purged or compacted away
+        if (isExpired(cacheEntry, Instant.now(clock).getEpochSecond())) {
+            log.debug("Get value table {} key {} expired", table, key);
+            hotCache.invalidate(cacheKey);
+            countGet(table, RESULT_MISS);
+            return Optional.empty();
+        }
+
+        log.debug("Get value table {} key {} value {}", table, key, cacheEntry);
 
         CacheEntryWrapper cacheEntryWrapper = new CacheEntryWrapper()
                 .setCacheEntry(cacheEntry);
 
-        List<BooleanCondition> cacheStalenessChecksList = Arrays.asList(
-                () -> checkStaleRefreshDate(cacheEntry),
-                () -> checkStaleReadCount(cacheEntry, cacheCountEntry, key, table)
+        // by result tag
+        Map<String, BooleanCondition> cacheStalenessChecks = ImmutableMap.of(
+                RESULT_STALE_DATE, () -> checkStaleRefreshDate(cacheEntry),
+                RESULT_STALE_COUNT, () -> checkStaleReadCount(cacheEntry, hotCacheEntry, cacheKey)
         );
 
-        for (BooleanCondition check : cacheStalenessChecksList) {
-            if (check.test()) {
+        String result = RESULT_HIT;
+        for (Map.Entry<String, BooleanCondition> check : cacheStalenessChecks.entrySet()) {
+            if (check.getValue().test()) {
                 cacheEntryWrapper.setStale(true);
+                result = check.getKey();
                 break;
             }
         }
 
+        // the loader or a single caller refreshes the entry, the others keep getting it meanwhile
+        if (cacheEntryWrapper.isStale() || isRefreshAhead(cacheEntry, hotCacheEntry)) {
+            Long refreshToken = refreshLeases.acquire(cacheKey);
+            if (refreshToken != null) {
+                if (!cacheRefresher.refresh(cacheKey, it -> write(Collections.singletonList(it.setRefreshToken(refreshToken))),
+                        () -> refreshLeases.release(cacheKey, refreshToken))) {
+                    cacheEntryWrapper.setRefresh(true)
+                            .setRefreshToken(refreshToken);
+                }
+                if (!cacheEntryWrapper.isStale()) {
+                    result = RESULT_REFRESH_AHEAD;
+                }
+            }
+        }
+
+        countGet(table, result);
         return Optional.of(cacheEntryWrapper);
     }
 
-    private boolean checkStaleReadCount(CacheEntry cacheEntry, CacheCountEntry cacheCountEntry, String key, String table) {
+    private void countGet(String table, String result) {
+        String tableTag = tableTags.get(table);
+        getCounters.computeIfAbsent(Arrays.asList(tableTag, result), it -> Counter.builder("cache.get.results")
+                .tag("table", tableTag)
+                .tag("result", result)
+                .description("Gets by result")
+                .register(meterRegistry))
+                .increment();
+    }
+
+    private boolean checkStaleReadCount(CacheEntry cacheEntry, HotCacheEntry hotCacheEntry, CacheKey cacheKey) {
         if (cacheEntry.getRefreshAfterCount() == 0) {
             return false;
         }
 
-        cacheCountEntry = Optional.ofNullable(cacheCountEntry)
-                .orElseGet(() -> new CacheCountEntry().setCount(0));
+        int count = hotCacheEntry.incrementCountBelow(cacheEntry.getRefreshAfterCount());
 
-        boolean stale = cacheEntry.getRefreshAfterCount() <= cacheCountEntry.getCount();
+        boolean stale = cacheEntry.getRefreshAfterCount() <= count;
         if (!stale) {
-            cacheCountEntry.setCount(cacheCountEntry.getCount() + 1);
-            cacheRepository.putCount(key, table, cacheCountEntry);
+            countAggregator.increment(cacheKey);
         }
         return stale;
     }
 
+    /**
+     * @return true within the last ahead ratio of the refresh interval or read count of the entry
+     */
+    private boolean isRefreshAhead(CacheEntry cacheEntry, HotCacheEntry hotCacheEntry) {
+        double aheadRatio = cacheProperties.getRefresh().getAheadRatio();
+        if (aheadRatio <= 0) {
+            return false;
+        }
+        if (cacheEntry.getRefreshAfterDate() != 0 && cacheEntry.getDateCreated() != null) {
+            long ahead = (long) Math.ceil((cacheEntry.getRefreshAfterDate() - cacheEntry.getDateCreated()) * aheadRatio);
+            if (cacheEntry.getRefreshAfterDate() - ahead < Instant.now(clock).getEpochSecond()) {
+                return true;
+            }
+        }
+        if (cacheEntry.getRefreshAfterCount() != 0) {
+            int ahead = (int) Math.ceil(cacheEntry.getRefreshAfterCount() * aheadRatio);
+            return cacheEntry.getRefreshAfterCount() - ahead <= hotCacheEntry.getCount();
+        }
+        return false;
+    }
+
+    private static boolean isExpired(CacheEntry cacheEntry, long epochSecond) {
+        return cacheEntry.getPurgeAfterDate() != 0 && cacheEntry.getPurgeAfterDate() < epochSecond;
+    }
+
     private boolean checkStaleRefreshDate(CacheEntry cacheEntry) {
         if (cacheEntry.getRefreshAfterDate() == 0) {
             return false;
@@ -80,39 +218,144 @@ public class CacheService {
         return cacheEntry.getRefreshAfterDate() < Instant.now(clock).getEpochSecond();
     }
 
-    public void putResult(String table, String key, String value,
+    public void putResult(String table, String key, byte[] value,
                           Long refreshAfterDate, Long purgeAfterDate, Integer refreshAfterCount) {
-        log.info("Put value table {} key {} value.size {} refreshAfterDate {} purgeAfterDate {} refreshAfterCount {}",
-                table, key, (value == null ? 0 : value.length()), refreshAfterDate, purgeAfterDate, refreshAfterCount);
+        log.debug("Put value table {} key {} value.size {} refreshAfterDate {} purgeAfterDate {} refreshAfterCount {}",
+                table, key, (value == null ? 0 : value.length), refreshAfterDate, purgeAfterDate, refreshAfterCount);
 
+        write(Collections.singletonList(new CachePutEntry()
+                .setTable(table)
+                .setKey(key)
+                .setValue(value)
+                .setRefreshAfterDate(refreshAfterDate)
+                .setPurgeAfterDate(purgeAfterDate)
+                .setRefreshAfterCount(refreshAfterCount)));
+    }
+
+    /**
+     * Batch variant of {@link #putResult(String, String, byte[], Long, Long, Integer)},
+     * all entries are written in a single repository write.
+     */
+    public void putResults(List<CachePutEntry> putEntries) {
+        log.debug("Put batch of {} entries", putEntries.size());
+        write(putEntries);
+    }
+
+    /**
+     * Starts a put of a result that is received in parts, see {@link ChunkedUpload}.
+     */
+    public ChunkedUpload startChunkedPut(CachePutEntry putEntry) {
+        log.debug("Put chunked value table {} key {}", putEntry.getTable(), putEntry.getKey());
+        return new ChunkedUpload(this, cacheRepository, putEntry, cacheProperties.getChunks().getChunkSize());
+    }
+
+    /**
+     * @return the chunks of a result returned by {@link #getResult(String, String)}, the iterator has to be closed
+     */
+    public ChunkIterator openChunks(String table, String key, ChunkedResult chunkedResult) {
+        return cacheRepository.openChunks(table, key, chunkedResult);
+    }
+
+    /**
+     * Puts completing a refresh lease that is no longer held are dropped, as a newer lease holder or an
+     * invalidation has superseded the result.
+     *
+     * @return the number of written entries
+     */
+    int write(List<CachePutEntry> putEntries) {
+        putEntries = putEntries.stream()
+                .filter(this::completeRefresh)
+                .collect(Collectors.toList());
+        if (putEntries.isEmpty()) {
+            return 0;
+        }
         long epochSecond = Instant.now(clock).getEpochSecond();
 
+        for (CachePutEntry putEntry : putEntries) {
+            putEntry.setCacheCountEntry(putEntry.getRefreshAfterCount() != 0 ? new CacheCountEntry().setCount(0) : null)
+                    .setCompression(getCompression(putEntry));
+        }
+
+        long[] generations = putEntries.stream()
+                .mapToLong(it -> hotCache.getGeneration(it.getTable()))
+                .toArray();
+        List<CacheEntry> cacheEntries = cacheRepository.putResults(putEntries, epochSecond);
+
+        for (int i = 0; i < putEntries.size(); i++) {
+            CachePutEntry putEntry = putEntries.get(i);
+            CacheKey cacheKey = new CacheKey(putEntry.getTable(), putEntry.getKey());
+            countAggregator.discard(cacheKey);
+            hotCache.put(cacheKey, cacheEntries.get(i), generations[i]);
+            refreshLeases.release(cacheKey);
+        }
+        return putEntries.size();
+    }
 
-        CacheCountEntry cacheCountEntry = null;
-        if (refreshAfterCount != 0) {
-            cacheCountEntry = cacheRepository.getCount(key, table)
-                    .orElseGet(() -> new CacheCountEntry().setCount(0));
-            cacheCountEntry.setCount(0);
+    private boolean completeRefresh(CachePutEntry putEntry) {
+        if (putEntry.getRefreshToken() == 0
+                || refreshLeases.complete(new CacheKey(putEntry.getTable(), putEntry.getKey()), putEntry.getRefreshToken())) {
+            return true;
         }
+        log.debug("Dropping put of table {} key {} with a replaced or invalidated refresh lease", putEntry.getTable(), putEntry.getKey());
+        return false;
+    }
 
-        cacheRepository.putResult(table, key, value,
-                refreshAfterDate,
-                purgeAfterDate,
-                refreshAfterCount,
-                epochSecond,
-                cacheCountEntry);
+    private ResultCompression getCompression(CachePutEntry putEntry) {
+        CacheProperties.Compression compression = cacheProperties.getCompression();
+        if (putEntry.getValue() == null || putEntry.getValue().length < compression.getMinBytes()) {
+            return ResultCompression.NONE;
+        }
+        return compression.getTables().getOrDefault(putEntry.getTable(), compression.getCodec());
+    }
+
+    /**
+     * Drops all entries of a table stored in column families of its own.
+     *
+     * @return false if the table is stored in the shared column families and nothing was dropped
+     */
+    public boolean dropTable(String table) {
+        log.info("Dropping table {}", table);
+        if (!cacheRepository.dropTable(table)) {
+            return false;
+        }
+        hotCache.invalidatePrefix(table, "");
+        countAggregator.discardPrefix(table, "");
+        refreshLeases.releasePrefix(table, "");
+        return true;
+    }
+
+    /**
+     * Removes all entries of a table whose key starts with the prefix, an empty prefix removes the whole table.
+     *
+     * @return the approximate number of removed entries
+     */
+    public long invalidate(String table, String keyPrefix) {
+        log.info("Invalidating table {} key prefix {}", table, keyPrefix);
+        long removed = cacheRepository.invalidate(table, keyPrefix);
+        hotCache.invalidatePrefix(table, keyPrefix);
+        countAggregator.discardPrefix(table, keyPrefix);
+        refreshLeases.releasePrefix(table, keyPrefix);
+        return removed;
+    }
+
+    /**
+     * @return the directory of the created checkpoint, empty if checkpoints are disabled
+     */
+    public Optional<Path> createCheckpoint() {
+        log.info("Creating checkpoint");
+        return Optional.ofNullable(cacheRepository.createCheckpoint());
     }
 
     public void purge() {
         log.info("Purging");
         long epochSecond = Instant.now(clock).getEpochSecond();
-        List<CacheEntry> entries = cacheRepository.list();
+        CacheProperties.Purge purge = cacheProperties.getPurge();
+        RateLimiter rateLimiter = RateLimiter.create(purge.getMaxDeletesPerSecond() > 0
+                ? purge.getMaxDeletesPerSecond() : Double.MAX_VALUE);
 
-        List<CacheEntry> filtered = entries.stream()
-                .filter(it -> it.getPurgeAfterDate() != 0)
-                .filter(it -> it.getPurgeAfterDate() < epochSecond)
-                .collect(Collectors.toList());
+        long purged = cacheRepository.purge(epochSecond, purge.getBatchSize(), rateLimiter);
+        hotCache.invalidateIf(it -> isExpired(it, epochSecond));
 
-        cacheRepository.delete(filtered);
+        log.info("Purged {} entries", purged);
     }
 }
@@ -0,0 +1,24 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.RocksDbProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CheckpointService {
+
+    private final CacheService cacheService;
+    private final RocksDbProperties rocksDbProperties;
+
+    @Scheduled(initialDelayString = "#{@rocksDbProperties.checkpoints.intervalMillis}",
+            fixedDelayString = "#{@rocksDbProperties.checkpoints.intervalMillis}")
+    public void scheduleCheckpoint() {
+        if (rocksDbProperties.getCheckpoints().isEnabled()) {
+            cacheService.createCheckpoint();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import com.flair.caching.flaircaching.repositories.CacheRepository;
+import com.flair.caching.flaircaching.repositories.ChunkedResult;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Put of a result that is received in parts. Full chunks are written as soon as they are received, so at most
+ * one chunk of the result is held in memory. The entry only references the chunks once the upload is committed,
+ * results that fit in a single chunk are stored inline like any other put.
+ */
+@Slf4j
+public class ChunkedUpload {
+
+    private final CacheService cacheService;
+    private final CacheRepository cacheRepository;
+    private final CachePutEntry putEntry;
+    private final ByteBuffer buffer;
+    private final long generation;
+    private int chunkCount;
+    private long length;
+    private boolean done;
+
+    ChunkedUpload(CacheService cacheService, CacheRepository cacheRepository, CachePutEntry putEntry, int chunkSize) {
+        this.cacheService = cacheService;
+        this.cacheRepository = cacheRepository;
+        this.putEntry = putEntry;
+        this.buffer = ByteBuffer.allocate(chunkSize);
+        this.generation = cacheRepository.newChunkGeneration();
+    }
+
+    public void append(ByteBuffer data) {
+        checkNotDone();
+        while (data.hasRemaining()) {
+            // a full chunk is only written once more data arrives, so a result of one chunk stays inline
+            if (!buffer.hasRemaining()) {
+                writeChunk();
+            }
+            int size = Math.min(buffer.remaining(), data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + size);
+            buffer.put(slice);
+            data.position(data.position() + size);
+            length += size;
+        }
+    }
+
+    /**
+     * Stores the entry, the chunks written so far are removed if that fails or the put is dropped.
+     */
+    public void commit() {
+        checkNotDone();
+        done = true;
+        try {
+            if (chunkCount == 0) {
+                putEntry.setValue(Arrays.copyOf(buffer.array(), buffer.position()));
+            } else {
+                if (buffer.position() > 0) {
+                    writeChunk();
+                }
+                putEntry.setValue(null)
+                        .setChunkedResult(new ChunkedResult()
+                                .setGeneration(generation)
+                                .setChunkCount(chunkCount)
+                                .setLength(length));
+            }
+            if (cacheService.write(Collections.singletonList(putEntry)) == 0) {
+                deleteChunks();
+            }
+        } catch (RuntimeException e) {
+            deleteChunks();
+            throw e;
+        }
+        log.debug("Put chunked value table {} key {} chunks {} length {}",
+                putEntry.getTable(), putEntry.getKey(), chunkCount, length);
+    }
+
+    /**
+     * Removes the chunks written so far, the stored entry is left unchanged.
+     */
+    public void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        deleteChunks();
+    }
+
+    private void writeChunk() {
+        cacheRepository.putChunk(putEntry.getTable(), putEntry.getKey(), generation, chunkCount,
+                Arrays.copyOf(buffer.array(), buffer.position()));
+        chunkCount++;
+        buffer.clear();
+    }
+
+    private void deleteChunks() {
+        if (chunkCount > 0) {
+            cacheRepository.deleteChunks(putEntry.getTable(), putEntry.getKey(), new ChunkedResult()
+                    .setGeneration(generation)
+                    .setChunkCount(chunkCount));
+        }
+    }
+
+    private void checkNotDone() {
+        if (done) {
+            throw new IllegalStateException("Chunked upload of table " + putEntry.getTable()
+                    + " key " + putEntry.getKey() + " is already done");
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheCountEntry;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.repositories.CacheEntryResult;
+import com.flair.caching.flaircaching.repositories.CacheRepository;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects read count increments in memory and writes them to the repository as one batch of merges
+ * per flush interval, so concurrent reads of the same key turn into a single count update.
+ */
+@Slf4j
+@Component
+public class CountAggregator {
+
+    private final CacheRepository cacheRepository;
+    private final Counter coalesced;
+    private final ConcurrentMap<CacheKey, Integer> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("cache-count-flush-%d")
+            .setDaemon(true)
+            .build());
+
+    public CountAggregator(CacheRepository cacheRepository, CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.cacheRepository = cacheRepository;
+        this.coalesced = Counter.builder("cache.count.updates.coalesced")
+                .description("Read count increments merged into an already pending count update")
+                .register(meterRegistry);
+
+        long flushIntervalMillis = cacheProperties.getCounts().getFlushIntervalMillis();
+        flushExecutor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushExecutor.shutdownNow();
+        try {
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    void increment(CacheKey key) {
+        pending.merge(key, 1, (count, one) -> {
+            coalesced.increment();
+            return count + one;
+        });
+    }
+
+    /**
+     * Drops the pending increments of an entry whose count was just reset by a put.
+     */
+    void discard(CacheKey key) {
+        pending.remove(key);
+    }
+
+    /**
+     * Drops the pending increments of the removed entries of a table whose key starts with the prefix.
+     */
+    void discardPrefix(String table, String keyPrefix) {
+        pending.keySet().removeIf(it -> it.getTable().equals(table) && it.getKey().startsWith(keyPrefix));
+    }
+
+    /**
+     * Adds the increments not yet written to the count read from the repository.
+     */
+    CacheEntryResult withPending(CacheKey key, CacheEntryResult cacheEntryResult) {
+        Integer increment = pending.get(key);
+        if (increment == null || cacheEntryResult.getCacheEntry() == null) {
+            return cacheEntryResult;
+        }
+        int count = cacheEntryResult.getCacheCountEntry() == null ? 0 : cacheEntryResult.getCacheCountEntry().getCount();
+        return cacheEntryResult.setCacheCountEntry(new CacheCountEntry().setCount(count + increment));
+    }
+
+    void flush() {
+        Map<CacheKey, Integer> increments = new HashMap<>();
+        for (CacheKey key : pending.keySet()) {
+            Integer increment = pending.remove(key);
+            if (increment != null) {
+                increments.put(key, increment);
+            }
+        }
+        if (!increments.isEmpty()) {
+            cacheRepository.incrementCounts(increments);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Error flushing read counts", e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.bi.messages.CacheLoaderServiceGrpc;
+import com.flair.bi.messages.LoadCacheRequest;
+import com.flair.bi.messages.LoadCacheResponse;
+import com.flair.bi.messages.PutCacheRequest;
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads entries through the LoadCache call of the backend at {@code cache.loader.target}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "cache.loader", name = "enabled", havingValue = "true")
+public class GrpcCacheLoader implements CacheLoader {
+
+    private final ManagedChannel channel;
+    private final CacheLoaderServiceGrpc.CacheLoaderServiceBlockingStub stub;
+    private final long timeoutMillis;
+
+    @Autowired
+    public GrpcCacheLoader(CacheProperties cacheProperties) {
+        this(createChannel(cacheProperties.getLoader()), cacheProperties.getLoader().getTimeoutMillis());
+    }
+
+    GrpcCacheLoader(ManagedChannel channel, long timeoutMillis) {
+        this.channel = channel;
+        this.stub = CacheLoaderServiceGrpc.newBlockingStub(channel);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static ManagedChannel createChannel(CacheProperties.Loader loader) {
+        log.info("Cache loader target {} tls {}", loader.getTarget(), loader.isTls());
+        ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(loader.getTarget());
+        if (!loader.isTls()) {
+            builder.usePlaintext();
+        }
+        return builder.build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channel.shutdownNow();
+    }
+
+    @Override
+    public CachePutEntry load(String table, String key) {
+        LoadCacheResponse response = stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .loadCache(LoadCacheRequest.newBuilder()
+                        .setTable(table)
+                        .setKey(key)
+                        .build());
+        if (!response.hasEntry()) {
+            return null;
+        }
+        PutCacheRequest entry = response.getEntry();
+        return new CachePutEntry()
+                .setValue(entry.getValueBytes().toByteArray())
+                .setRefreshAfterDate(entry.getRefreshAfterDate())
+                .setPurgeAfterDate(entry.getPurgeAfterDate())
+                .setRefreshAfterCount(entry.getRefreshAfterCount());
+    }
+}
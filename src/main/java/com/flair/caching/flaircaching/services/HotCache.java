@@ -0,0 +1,163 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.repositories.CacheEntry;
+import com.flair.caching.flaircaching.repositories.CacheEntryResult;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Size bounded near cache of the most used entries in front of the rocksdb repository.
+ * Entries keep an in memory copy of their read count, which mirrors the count in the repository
+ * as long as the entry stays cached.
+ */
+@Slf4j
+@Component
+public class HotCache {
+
+    private static final String CACHE_NAME = "hotTier";
+
+    private final boolean enabled;
+    private final boolean offHeap;
+    private final Cache<CacheKey, HotCacheEntry> cache;
+    // bumped by every invalidation of a table, entries read or written before it must not be cached after it
+    private final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<>();
+
+    public HotCache(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        CacheProperties.HotTier hotTier = cacheProperties.getHotTier();
+        log.info("Hot tier enabled {} max bytes {} off heap {}",
+                hotTier.isEnabled(), hotTier.getMaxBytes(), hotTier.isOffHeap());
+
+        this.enabled = hotTier.isEnabled();
+        this.offHeap = hotTier.isOffHeap();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(hotTier.getMaxBytes())
+                .weigher((CacheKey key, HotCacheEntry entry) -> entry.getWeight())
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        Gauge.builder("cache.hot.tier.bytes", cache, it -> it.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L))
+                .baseUnit("bytes")
+                .description("Estimated bytes held by the hot tier")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the cached entry, loading it through the loader on a miss, or null if the loader found nothing
+     */
+    HotCacheEntry get(CacheKey key, Function<CacheKey, CacheEntryResult> loader) {
+        if (!enabled) {
+            return toHotCacheEntry(loader.apply(key));
+        }
+        long generation = getGeneration(key.getTable());
+        HotCacheEntry hotCacheEntry = cache.get(key, it -> toHotCacheEntry(loader.apply(it)));
+        removeIfInvalidated(key, hotCacheEntry, generation);
+        return hotCacheEntry;
+    }
+
+    /**
+     * Loads all keys missing from the hot tier with a single loader call.
+     *
+     * @return the found entries, keys the loader found nothing for are left out
+     */
+    Map<CacheKey, HotCacheEntry> getAll(Collection<CacheKey> keys,
+                                        Function<Set<CacheKey>, Map<CacheKey, CacheEntryResult>> loader) {
+        Map<CacheKey, HotCacheEntry> entries = new HashMap<>(enabled ? cache.getAllPresent(keys) : new HashMap<>());
+        Set<CacheKey> missing = new LinkedHashSet<>(keys);
+        missing.removeAll(entries.keySet());
+        if (missing.isEmpty()) {
+            return entries;
+        }
+
+        Map<String, Long> tableGenerations = new HashMap<>();
+        missing.forEach(it -> tableGenerations.computeIfAbsent(it.getTable(), this::getGeneration));
+        loader.apply(missing).forEach((key, cacheEntryResult) -> {
+            HotCacheEntry hotCacheEntry = toHotCacheEntry(cacheEntryResult);
+            if (hotCacheEntry == null) {
+                return;
+            }
+            if (enabled) {
+                // keep an entry cached meanwhile, it may already hold newer reads or a newer put
+                HotCacheEntry existing = cache.asMap().putIfAbsent(key, hotCacheEntry);
+                hotCacheEntry = existing == null ? hotCacheEntry : existing;
+                removeIfInvalidated(key, hotCacheEntry, tableGenerations.get(key.getTable()));
+            }
+            entries.put(key, hotCacheEntry);
+        });
+        return entries;
+    }
+
+    /**
+     * @param generation generation of the table taken before the entry was written
+     */
+    void put(CacheKey key, CacheEntry cacheEntry, long generation) {
+        if (enabled) {
+            HotCacheEntry hotCacheEntry = newHotCacheEntry(cacheEntry, 0);
+            cache.put(key, hotCacheEntry);
+            removeIfInvalidated(key, hotCacheEntry, generation);
+        }
+    }
+
+    /**
+     * @return the invalidation generation of the table, to be taken before reading or writing an entry
+     * that is cached afterwards
+     */
+    long getGeneration(String table) {
+        return generations.getOrDefault(table, 0L);
+    }
+
+    /**
+     * Removes an entry cached after an invalidation of its table that started once the entry was read or written.
+     */
+    private void removeIfInvalidated(CacheKey key, HotCacheEntry hotCacheEntry, long generation) {
+        if (hotCacheEntry != null && getGeneration(key.getTable()) != generation) {
+            cache.asMap().remove(key, hotCacheEntry);
+        }
+    }
+
+    void invalidate(CacheKey key) {
+        cache.invalidate(key);
+    }
+
+    void invalidatePrefix(String table, String keyPrefix) {
+        // bumped first, an entry cached after the removal below then sees the new generation
+        generations.merge(table, 1L, Long::sum);
+        cache.asMap().keySet().removeIf(it -> it.getTable().equals(table) && it.getKey().startsWith(keyPrefix));
+    }
+
+    void invalidateIf(Predicate<CacheEntry> predicate) {
+        cache.asMap().values().removeIf(it -> predicate.test(it.getCacheEntry()));
+    }
+
+    private HotCacheEntry toHotCacheEntry(CacheEntryResult cacheEntryResult) {
+        if (cacheEntryResult.getCacheEntry() == null) {
+            return null;
+        }
+        int count = cacheEntryResult.getCacheCountEntry() == null ? 0
+                : cacheEntryResult.getCacheCountEntry().getCount();
+        return newHotCacheEntry(cacheEntryResult.getCacheEntry(), count);
+    }
+
+    private HotCacheEntry newHotCacheEntry(CacheEntry cacheEntry, int count) {
+        return offHeap ? HotCacheEntry.offHeap(cacheEntry, count) : HotCacheEntry.onHeap(cacheEntry, count);
+    }
+}
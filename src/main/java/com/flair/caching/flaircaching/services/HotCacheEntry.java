@@ -0,0 +1,68 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.repositories.CacheEntry;
+import com.flair.caching.flaircaching.repositories.CacheEntryCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HotCacheEntry {
+
+    // rough per entry cost of the cache node, key and this holder
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final CacheEntry cacheEntry;
+    private final ByteBuffer offHeapValue;
+    private final String rocksDbKey;
+    private final AtomicInteger count;
+    private final int weight;
+
+    private HotCacheEntry(CacheEntry cacheEntry, ByteBuffer offHeapValue, String rocksDbKey, int count, int weight) {
+        this.cacheEntry = cacheEntry;
+        this.offHeapValue = offHeapValue;
+        this.rocksDbKey = rocksDbKey;
+        this.count = new AtomicInteger(count);
+        this.weight = weight;
+    }
+
+    static HotCacheEntry onHeap(CacheEntry cacheEntry, int count) {
+        int resultSize = cacheEntry.getResult() == null ? 0 : cacheEntry.getResult().length;
+        return new HotCacheEntry(cacheEntry, null, cacheEntry.getRocksDbKey(), count,
+                ENTRY_OVERHEAD + resultSize);
+    }
+
+    static HotCacheEntry offHeap(CacheEntry cacheEntry, int count) {
+        byte[] bytes = CacheEntryCodec.encode(cacheEntry);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return new HotCacheEntry(null, buffer, cacheEntry.getRocksDbKey(), count,
+                ENTRY_OVERHEAD + bytes.length);
+    }
+
+    CacheEntry getCacheEntry() {
+        if (cacheEntry != null) {
+            return cacheEntry;
+        }
+        ByteBuffer buffer = offHeapValue.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return CacheEntryCodec.decode(rocksDbKey, bytes);
+    }
+
+    /**
+     * Counts a read unless the limit has already been reached.
+     *
+     * @return the read count before this read
+     */
+    int incrementCountBelow(int limit) {
+        return count.getAndUpdate(it -> it < limit ? it + 1 : it);
+    }
+
+    int getCount() {
+        return count.get();
+    }
+
+    int getWeight() {
+        return weight;
+    }
+}
@@ -12,7 +12,7 @@ public class PurgeService {
 
     private final CacheService cacheService;
 
-    @Scheduled(fixedDelay = 3_600_000)
+    @Scheduled(fixedDelayString = "#{@cacheProperties.purge.intervalMillis}")
     public void schedulePurge() {
         cacheService.purge();
     }
@@ -0,0 +1,97 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the refresh of an entry that is due for one to a single caller per key. The lease token
+ * returned to that caller is checked when it puts the recomputed result. A put is dropped when another
+ * caller holds the lease of the key, or the table was invalidated since the lease was granted. A lease
+ * that only expired still accepts the put, so a recomputation that outlasts the lease is not wasted.
+ * The token carries the invalidation generation of the table, as the lease itself may be gone by then.
+ */
+@Component
+public class RefreshLeases {
+
+    private final Cache<CacheKey, Long> leases;
+    // bumped on every invalidation of the table, as in HotCache
+    private final ConcurrentMap<String, Integer> generations = new ConcurrentHashMap<>();
+    private final Counter granted;
+    private final Counter rejected;
+
+    public RefreshLeases(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.leases = Caffeine.newBuilder()
+                .expireAfterWrite(cacheProperties.getRefresh().getLeaseMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        this.granted = Counter.builder("cache.refresh.leases")
+                .tag("result", "granted")
+                .description("Refresh leases by result")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("cache.refresh.leases")
+                .tag("result", "rejected")
+                .description("Refresh leases by result")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the token of a new lease, null if the refresh of the key is already leased
+     */
+    Long acquire(CacheKey key) {
+        // generation in the high bits, a nonzero random in the low bits as 0 is no token
+        long token = (long) getGeneration(key.getTable()) << 32
+                | ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        if (leases.asMap().putIfAbsent(key, token) != null) {
+            return null;
+        }
+        granted.increment();
+        return token;
+    }
+
+    /**
+     * Ends the lease of the token.
+     *
+     * @return false if another token holds the lease of the key, or the table was invalidated since the
+     * token was granted
+     */
+    boolean complete(CacheKey key, long token) {
+        Long holder = leases.asMap().get(key);
+        boolean accepted = holder == null
+                ? (int) (token >>> 32) == getGeneration(key.getTable())
+                : holder == token && leases.asMap().remove(key, token);
+        if (!accepted) {
+            rejected.increment();
+        }
+        return accepted;
+    }
+
+    private int getGeneration(String table) {
+        return generations.getOrDefault(table, 0);
+    }
+
+    void release(CacheKey key) {
+        leases.invalidate(key);
+    }
+
+    /**
+     * Ends the lease of the token if it still holds it, for a refresh that has nothing to put.
+     */
+    void release(CacheKey key, long token) {
+        leases.asMap().remove(key, token);
+    }
+
+    void releasePrefix(String table, String keyPrefix) {
+        // bumped first, a lease granted after the removal below then carries the new generation
+        generations.merge(table, 1, Integer::sum);
+        leases.asMap().keySet().removeIf(it -> it.getTable().equals(table) && it.getKey().startsWith(keyPrefix));
+    }
+}
@@ -0,0 +1,53 @@
+package com.flair.caching.flaircaching.services;
+
+import io.micrometer.core.instrument.Counter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent callers for the same key share one in flight call instead of each running it.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+
+    SingleFlight(Counter coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    V execute(K key, Supplier<V> supplier) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return join(existing);
+        }
+
+        try {
+            V value = supplier.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
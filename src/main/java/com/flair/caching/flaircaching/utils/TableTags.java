@@ -0,0 +1,41 @@
+package com.flair.caching.flaircaching.utils;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounds the values of the table tag of metrics, tables come from clients and are not known up front.
+ */
+public class TableTags {
+
+    public static final String INVALID = "invalid";
+    public static final String OTHER = "other";
+
+    private final int maxTables;
+    private final Set<String> tables = ConcurrentHashMap.newKeySet();
+
+    public TableTags(int maxTables) {
+        this.maxTables = maxTables;
+    }
+
+    /**
+     * @return the table itself for the first max-tables tables, {@link #OTHER} for later ones
+     * and {@link #INVALID} for an empty table
+     */
+    public String get(String table) {
+        if (StringUtils.isEmpty(table)) {
+            return INVALID;
+        }
+        if (tables.contains(table)) {
+            return table;
+        }
+        // may let a few more tables in when racing, the bound only has to hold roughly
+        if (tables.size() < maxTables) {
+            tables.add(table);
+            return table;
+        }
+        return OTHER;
+    }
+}
@@ -1,15 +1,34 @@
 package com.flair.caching.flaircaching.controllers;
 
+import com.flair.bi.messages.CacheResultStatus;
 import com.flair.bi.messages.CacheServiceGrpc;
+import com.flair.bi.messages.CacheStreamRequest;
+import com.flair.bi.messages.CacheStreamResponse;
+import com.flair.bi.messages.DropTableRequest;
+import com.flair.bi.messages.GetCacheBatchRequest;
+import com.flair.bi.messages.GetCacheBatchResponse;
+import com.flair.bi.messages.GetCacheChunk;
 import com.flair.bi.messages.GetCacheRequest;
 import com.flair.bi.messages.GetCacheResponse;
+import com.flair.bi.messages.InvalidateTableRequest;
+import com.flair.bi.messages.InvalidateTableResponse;
+import com.flair.bi.messages.PutCacheBatchRequest;
+import com.flair.bi.messages.PutCacheChunk;
 import com.flair.bi.messages.PutCacheRequest;
+import com.flair.bi.messages.PutCacheResponse;
 import com.flair.caching.flaircaching.AbstractIntTest;
+import com.flair.caching.flaircaching.config.CacheProperties;
 import com.flair.caching.flaircaching.services.CacheService;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.internal.testing.StreamRecorder;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,9 +36,17 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -28,10 +55,17 @@ public class CacheGrpcControllerIntTest extends AbstractIntTest {
     private static final long CURRENT_TIMESTAMP = 1552241431;
 
     private CacheServiceGrpc.CacheServiceBlockingStub blockingStub;
+    private CacheServiceGrpc.CacheServiceStub asyncStub;
 
     @Autowired
     private CacheService cacheService;
 
+    @Autowired
+    private CacheProperties cacheProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @TestConfiguration
     static class TestClockConfig {
         @Bean
@@ -48,12 +82,13 @@ public class CacheGrpcControllerIntTest extends AbstractIntTest {
         grpcCleanup.register(InProcessServerBuilder
                 .forName(serverName)
                 .directExecutor()
-                .addService(new CacheGrpcController(cacheService))
+                .addService(new CacheGrpcController(cacheService, cacheProperties, meterRegistry))
                 .build()
                 .start());
 
-        blockingStub = CacheServiceGrpc.newBlockingStub(
-                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+        ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        blockingStub = CacheServiceGrpc.newBlockingStub(channel);
+        asyncStub = CacheServiceGrpc.newStub(channel);
     }
 
     @Test
@@ -185,6 +220,25 @@ public class CacheGrpcControllerIntTest extends AbstractIntTest {
         assertFalse(cache.getMetadata().getStale());
     }
 
+    @Test
+    public void getResultLargeValue() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        String value = StringUtils.repeat("{\"column\":\"välue\"},", 10_000);
+
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable("table")
+                .setValue(value)
+                .setKey(key)
+                .build());
+
+        GetCacheResponse cache = blockingStub.getCache(GetCacheRequest.newBuilder()
+                .setTable("table")
+                .setKey(key)
+                .build());
+
+        assertEquals(value, cache.getResult());
+    }
+
     @Test
     public void getResultStaleBecauseOfDate() {
         String key = "key" + Math.random() + System.currentTimeMillis();
@@ -354,4 +408,339 @@ public class CacheGrpcControllerIntTest extends AbstractIntTest {
         assertEquals("value_1", cache3.getResult());
     }
 
+    @Test
+    public void getCacheBatch() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+
+        blockingStub.putCacheBatch(PutCacheBatchRequest.newBuilder()
+                .addRequests(PutCacheRequest.newBuilder()
+                        .setTable("table")
+                        .setValue("value1")
+                        .setKey(key + "1")
+                        .setRefreshAfterDate(CURRENT_TIMESTAMP + 10)
+                        .setPurgeAfterDate(CURRENT_TIMESTAMP + 60))
+                .addRequests(PutCacheRequest.newBuilder()
+                        .setTable("table")
+                        .setValue("value2")
+                        .setKey(key + "2")
+                        .setRefreshAfterDate(CURRENT_TIMESTAMP - 1)
+                        .setPurgeAfterDate(CURRENT_TIMESTAMP + 60))
+                .build());
+
+        GetCacheBatchResponse cache = blockingStub.getCacheBatch(GetCacheBatchRequest.newBuilder()
+                .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey(key + "1"))
+                .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey(key + "2"))
+                .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey(key + "3"))
+                .build());
+
+        assertEquals(3, cache.getResultsCount());
+        assertEquals(CacheResultStatus.HIT, cache.getResults(0).getStatus());
+        assertEquals("value1", cache.getResults(0).getResult());
+        assertEquals(CURRENT_TIMESTAMP, cache.getResults(0).getMetadata().getDateCreated());
+        assertEquals(CacheResultStatus.STALE, cache.getResults(1).getStatus());
+        assertEquals("value2", cache.getResults(1).getResult());
+        assertTrue(cache.getResults(1).getMetadata().getStale());
+        assertEquals(CacheResultStatus.NOT_FOUND, cache.getResults(2).getStatus());
+    }
+
+    @Test
+    public void getCacheBatchInvalidRequestKey() {
+        boolean exceptionHandled = false;
+        try {
+            blockingStub.getCacheBatch(GetCacheBatchRequest.newBuilder()
+                    .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey("key"))
+                    .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey(""))
+                    .build());
+        } catch (Exception e) {
+            if (e instanceof StatusRuntimeException) {
+                exceptionHandled = true;
+                StatusRuntimeException statusRuntimeException = (StatusRuntimeException) e;
+                assertEquals(Status.INVALID_ARGUMENT.getCode(), statusRuntimeException.getStatus().getCode());
+                assertEquals("errors.cache.key.null", statusRuntimeException.getStatus().getDescription());
+            }
+        }
+
+        assertTrue(exceptionHandled);
+    }
+
+    @Test
+    public void cacheStream() throws Exception {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+
+        StreamRecorder<CacheStreamResponse> responses = StreamRecorder.create();
+        StreamObserver<CacheStreamRequest> requests = asyncStub.cacheStream(responses);
+        requests.onNext(CacheStreamRequest.newBuilder()
+                .setCorrelationId(1)
+                .setPut(PutCacheRequest.newBuilder()
+                        .setTable("table")
+                        .setValue("value")
+                        .setKey(key)
+                        .setPurgeAfterDate(CURRENT_TIMESTAMP + 60))
+                .build());
+        requests.onNext(CacheStreamRequest.newBuilder()
+                .setCorrelationId(2)
+                .setGet(GetCacheRequest.newBuilder().setTable("table").setKey(key))
+                .build());
+        requests.onNext(CacheStreamRequest.newBuilder()
+                .setCorrelationId(3)
+                .setGet(GetCacheRequest.newBuilder().setTable("table").setKey(key + "missing"))
+                .build());
+        requests.onNext(CacheStreamRequest.newBuilder()
+                .setCorrelationId(4)
+                .setGet(GetCacheRequest.newBuilder().setTable("").setKey(key))
+                .build());
+        requests.onCompleted();
+
+        assertTrue(responses.awaitCompletion(5, TimeUnit.SECONDS));
+        assertNull(responses.getError());
+
+        Map<Long, CacheStreamResponse> results = responses.getValues().stream()
+                .collect(Collectors.toMap(CacheStreamResponse::getCorrelationId, Function.identity()));
+        assertEquals(4, results.size());
+        assertTrue(results.get(1L).hasPut());
+        assertEquals(CacheResultStatus.HIT, results.get(2L).getGet().getStatus());
+        assertEquals("value", results.get(2L).getGet().getResult());
+        assertEquals(CacheResultStatus.NOT_FOUND, results.get(3L).getGet().getStatus());
+        assertEquals("errors.cache.table.null", results.get(4L).getError());
+    }
+
+    @Test
+    public void putAndGetCacheChunked() throws Exception {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        byte[] part = StringUtils.repeat("{\"column\":\"välue\"},", 20_000).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+        StreamRecorder<PutCacheResponse> putResponse = StreamRecorder.create();
+        StreamObserver<PutCacheChunk> putChunks = asyncStub.putCacheChunked(putResponse);
+        putChunks.onNext(PutCacheChunk.newBuilder()
+                .setMetadata(PutCacheRequest.newBuilder()
+                        .setTable("table")
+                        .setKey(key)
+                        .setPurgeAfterDate(CURRENT_TIMESTAMP + 60))
+                .build());
+        for (int i = 0; i < 10; i++) {
+            putChunks.onNext(PutCacheChunk.newBuilder().setData(ByteString.copyFrom(part)).build());
+            value.write(part);
+        }
+        putChunks.onCompleted();
+
+        assertTrue(putResponse.awaitCompletion(5, TimeUnit.SECONDS));
+        assertNull(putResponse.getError());
+        assertTrue(value.size() > cacheProperties.getChunks().getChunkSize());
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        Iterator<GetCacheChunk> chunks = blockingStub.getCacheChunked(GetCacheRequest.newBuilder()
+                .setTable("table")
+                .setKey(key)
+                .build());
+        GetCacheChunk first = chunks.next();
+        assertEquals(CURRENT_TIMESTAMP, first.getMetadata().getDateCreated());
+        first.getData().writeTo(result);
+        while (chunks.hasNext()) {
+            chunks.next().getData().writeTo(result);
+        }
+        assertArrayEquals(value.toByteArray(), result.toByteArray());
+
+        GetCacheBatchResponse batch = blockingStub.getCacheBatch(GetCacheBatchRequest.newBuilder()
+                .addRequests(GetCacheRequest.newBuilder().setTable("table").setKey(key))
+                .build());
+        assertEquals(CacheResultStatus.CHUNKED, batch.getResults(0).getStatus());
+
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder()
+                    .setTable("table")
+                    .setKey(key)
+                    .build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.FAILED_PRECONDITION.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void getCacheChunkedInlineValue() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable("table")
+                .setValue("value")
+                .setKey(key)
+                .build());
+
+        Iterator<GetCacheChunk> chunks = blockingStub.getCacheChunked(GetCacheRequest.newBuilder()
+                .setTable("table")
+                .setKey(key)
+                .build());
+
+        GetCacheChunk chunk = chunks.next();
+        assertTrue(chunk.hasMetadata());
+        assertEquals("value", chunk.getData().toStringUtf8());
+        assertFalse(chunks.hasNext());
+    }
+
+    @Test
+    public void putCacheChunkedWithoutMetadata() throws Exception {
+        StreamRecorder<PutCacheResponse> putResponse = StreamRecorder.create();
+        StreamObserver<PutCacheChunk> putChunks = asyncStub.putCacheChunked(putResponse);
+        putChunks.onNext(PutCacheChunk.newBuilder().setData(ByteString.copyFromUtf8("value")).build());
+        putChunks.onCompleted();
+
+        assertTrue(putResponse.awaitCompletion(5, TimeUnit.SECONDS));
+        assertEquals(Status.INVALID_ARGUMENT.getCode(), Status.fromThrowable(putResponse.getError()).getCode());
+    }
+
+    @Test
+    public void dropTable() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable("dedicated")
+                .setValue("value")
+                .setKey(key)
+                .build());
+
+        blockingStub.dropTable(DropTableRequest.newBuilder().setTable("dedicated").build());
+
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable("dedicated").setKey(key).build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable("dedicated")
+                .setValue("value2")
+                .setKey(key)
+                .build());
+        assertEquals("value2", blockingStub.getCache(GetCacheRequest.newBuilder()
+                .setTable("dedicated")
+                .setKey(key)
+                .build()).getResult());
+    }
+
+    @Test
+    public void dropSharedTable() {
+        try {
+            blockingStub.dropTable(DropTableRequest.newBuilder().setTable("table").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.FAILED_PRECONDITION.getCode(), e.getStatus().getCode());
+            assertEquals("errors.cache.table.shared", e.getStatus().getDescription());
+        }
+    }
+
+    @Test
+    public void putGetDigestedKey() {
+        String table = "digest" + Math.random() + System.currentTimeMillis();
+        String key = "select * from sales where " + StringUtils.repeat("amount > 0 and ", 50);
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable(table)
+                .setValue("value")
+                .setKey(key)
+                .build());
+
+        assertEquals("value", blockingStub.getCache(GetCacheRequest.newBuilder()
+                .setTable(table)
+                .setKey(key)
+                .build()).getResult());
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey(key + " ").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+
+        InvalidateTableResponse response = blockingStub.invalidateTable(InvalidateTableRequest.newBuilder()
+                .setTable(table)
+                .setKeyPrefix("select * from sales")
+                .build());
+
+        assertEquals(1, response.getRemoved());
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey(key).build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void invalidateTablePrefix() {
+        String table = "invalidate" + Math.random() + System.currentTimeMillis();
+        for (String key : Arrays.asList("a1", "a2", "b1")) {
+            blockingStub.putCache(PutCacheRequest.newBuilder()
+                    .setTable(table)
+                    .setValue("value")
+                    .setKey(key)
+                    .build());
+        }
+
+        InvalidateTableResponse response = blockingStub.invalidateTable(InvalidateTableRequest.newBuilder()
+                .setTable(table)
+                .setKeyPrefix("a")
+                .build());
+
+        assertEquals(2, response.getRemoved());
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey("a1").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+        assertEquals("value", blockingStub.getCache(GetCacheRequest.newBuilder()
+                .setTable(table)
+                .setKey("b1")
+                .build()).getResult());
+
+        response = blockingStub.invalidateTable(InvalidateTableRequest.newBuilder().setTable(table).build());
+
+        assertEquals(1, response.getRemoved());
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey("b1").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void getResultRecordsMetrics() {
+        String table = "metrics" + Math.random() + System.currentTimeMillis();
+
+        blockingStub.putCache(PutCacheRequest.newBuilder()
+                .setTable(table)
+                .setValue("value")
+                .setKey("key")
+                .setRefreshAfterCount(1)
+                .build());
+        blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey("key").build());
+        blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey("key").build());
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable(table).setKey("missing").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.NOT_FOUND.getCode(), e.getStatus().getCode());
+        }
+
+        assertEquals(1, meterRegistry.get("cache.get.results").tags("table", table, "result", "hit").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("cache.get.results").tags("table", table, "result", "stale_count").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("cache.get.results").tags("table", table, "result", "miss").counter().count(), 0);
+        assertEquals(2, meterRegistry.get("cache.rpc").tags("method", "getCache", "table", table, "status", "OK").timer().count());
+        assertEquals(1, meterRegistry.get("cache.rpc").tags("method", "getCache", "table", table, "status", "NOT_FOUND").timer().count());
+        assertEquals(1, meterRegistry.get("cache.rpc").tags("method", "putCache", "table", table, "status", "OK").timer().count());
+    }
+
+    @Test
+    public void getResultRecordsInvalidTableTag() {
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable("").setKey("key").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.INVALID_ARGUMENT.getCode(), e.getStatus().getCode());
+        }
+
+        assertEquals(1, meterRegistry.get("cache.rpc")
+                .tags("method", "getCache", "table", "invalid", "status", "INVALID_ARGUMENT").timer().count());
+    }
+
 }
@@ -0,0 +1,101 @@
+package com.flair.caching.flaircaching.controllers;
+
+import com.flair.bi.messages.CacheServiceGrpc;
+import com.flair.bi.messages.CacheStreamRequest;
+import com.flair.bi.messages.CacheStreamResponse;
+import com.flair.bi.messages.GetCacheRequest;
+import com.flair.caching.flaircaching.config.CacheProperties;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.internal.testing.StreamRecorder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Calls to a controller whose executors no longer take work, as when their queues are full.
+ */
+public class CacheGrpcControllerTest {
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CacheServiceGrpc.CacheServiceBlockingStub blockingStub;
+    private CacheServiceGrpc.CacheServiceStub asyncStub;
+
+    @Before
+    public void setUp() throws Exception {
+        CacheGrpcController controller = new CacheGrpcController(null, new CacheProperties(), meterRegistry);
+        controller.shutdown();
+
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(controller)
+                .build()
+                .start());
+
+        ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        blockingStub = CacheServiceGrpc.newBlockingStub(channel);
+        asyncStub = CacheServiceGrpc.newStub(channel);
+    }
+
+    @Test
+    public void getCacheBusy() {
+        try {
+            blockingStub.getCache(GetCacheRequest.newBuilder().setTable("table").setKey("key").build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.RESOURCE_EXHAUSTED.getCode(), e.getStatus().getCode());
+            assertEquals("errors.cache.busy", e.getStatus().getDescription());
+        }
+
+        assertEquals(1, meterRegistry.get("cache.io.rejected").tags("method", "getCache").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("cache.rpc")
+                .tags("method", "getCache", "table", "table", "status", "RESOURCE_EXHAUSTED").timer().count());
+    }
+
+    @Test
+    public void cacheStreamBusy() throws Exception {
+        StreamRecorder<CacheStreamResponse> responses = StreamRecorder.create();
+        StreamObserver<CacheStreamRequest> requests = asyncStub.cacheStream(responses);
+        requests.onNext(CacheStreamRequest.newBuilder()
+                .setCorrelationId(1)
+                .setGet(GetCacheRequest.newBuilder().setTable("table").setKey("key"))
+                .build());
+
+        assertTrue(responses.awaitCompletion(5, TimeUnit.SECONDS));
+        assertEquals(0, responses.getValues().size());
+        Status status = Status.fromThrowable(responses.getError());
+        assertEquals(Status.RESOURCE_EXHAUSTED.getCode(), status.getCode());
+        assertEquals("errors.cache.busy", status.getDescription());
+        assertEquals(1, meterRegistry.get("cache.io.rejected").tags("method", "cacheStream").counter().count(), 0);
+    }
+
+    @Test
+    public void cacheStreamCompletedBusy() throws Exception {
+        StreamRecorder<CacheStreamResponse> responses = StreamRecorder.create();
+        StreamObserver<CacheStreamRequest> requests = asyncStub.cacheStream(responses);
+        requests.onCompleted();
+
+        assertTrue(responses.awaitCompletion(5, TimeUnit.SECONDS));
+        Status status = Status.fromThrowable(responses.getError());
+        assertEquals(Status.RESOURCE_EXHAUSTED.getCode(), status.getCode());
+        assertEquals("errors.cache.busy", status.getDescription());
+    }
+}
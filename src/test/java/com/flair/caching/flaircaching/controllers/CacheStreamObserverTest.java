@@ -0,0 +1,194 @@
+package com.flair.caching.flaircaching.controllers;
+
+import com.flair.bi.messages.CacheStreamRequest;
+import com.flair.bi.messages.CacheStreamResponse;
+import com.flair.bi.messages.GetCacheRequest;
+import com.flair.caching.flaircaching.config.CacheProperties;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheStreamObserverTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final TestResponseObserver responseObserver = new TestResponseObserver();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void slowReaderHoldsResponsesAndRequests() throws Exception {
+        CacheStreamObserver requestObserver = open();
+        assertEquals(2, responseObserver.requested.get());
+
+        responseObserver.ready = false;
+        // invalid gets are answered without the cache service
+        requestObserver.onNext(invalidGet(1));
+        requestObserver.onNext(invalidGet(2));
+        awaitExecutor();
+
+        assertEquals(0, responseObserver.responses.size());
+        assertEquals(2, responseObserver.requested.get());
+
+        requestObserver.onCompleted();
+        awaitExecutor();
+        assertFalse(responseObserver.completed);
+
+        responseObserver.ready = true;
+        responseObserver.onReadyHandler.run();
+        awaitExecutor();
+
+        assertEquals(2, responseObserver.responses.size());
+        assertEquals(1, responseObserver.responses.get(0).getCorrelationId());
+        assertEquals("errors.cache.key.null", responseObserver.responses.get(1).getError());
+        assertTrue(responseObserver.completed);
+    }
+
+    @Test
+    public void requestsMoreOnceResponsesAreSent() throws Exception {
+        CacheStreamObserver requestObserver = open();
+
+        requestObserver.onNext(invalidGet(1));
+        requestObserver.onNext(invalidGet(2));
+        awaitExecutor();
+
+        assertEquals(2, responseObserver.responses.size());
+        assertEquals(4, responseObserver.requested.get());
+    }
+
+    @Test
+    public void fullIoQueueClosesStreamAsBusy() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        ThreadPoolExecutor ioExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1));
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            ioExecutor.execute(() -> {
+            });
+            AtomicInteger rejected = new AtomicInteger();
+            CacheStreamObserver requestObserver = open(ioExecutor, rejected::incrementAndGet);
+
+            requestObserver.onNext(invalidGet(1));
+            requestObserver.onNext(invalidGet(2));
+
+            assertEquals(1, rejected.get());
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(responseObserver.error).getCode());
+            assertEquals("errors.cache.busy", Status.fromThrowable(responseObserver.error).getDescription());
+        } finally {
+            blocked.countDown();
+            ioExecutor.shutdown();
+        }
+        assertTrue(ioExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, responseObserver.responses.size());
+    }
+
+    private CacheStreamObserver open() {
+        return open(executor, () -> {
+        });
+    }
+
+    private CacheStreamObserver open(Executor ioExecutor, Runnable onRejected) {
+        CacheProperties.Stream streamProperties = new CacheProperties.Stream();
+        streamProperties.setMaxBatchSize(2);
+        streamProperties.setFlushWindowMillis(60_000);
+        return new CacheStreamObserver(null, responseObserver, ioExecutor, executor, onRejected, streamProperties);
+    }
+
+    private void awaitExecutor() throws Exception {
+        // the executor runs one task at a time in submission order
+        executor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static CacheStreamRequest invalidGet(long correlationId) {
+        return CacheStreamRequest.newBuilder()
+                .setCorrelationId(correlationId)
+                .setGet(GetCacheRequest.newBuilder().setTable("table"))
+                .build();
+    }
+
+    private static class TestResponseObserver extends ServerCallStreamObserver<CacheStreamResponse> {
+
+        private final List<CacheStreamResponse> responses = new CopyOnWriteArrayList<>();
+        private final AtomicInteger requested = new AtomicInteger();
+        private volatile boolean ready = true;
+        private volatile boolean completed;
+        private volatile Throwable error;
+        private Runnable onReadyHandler;
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+            requested.addAndGet(count);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+
+        @Override
+        public void onNext(CacheStreamResponse value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.dto.CacheCountEntry;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheEntryCodecTest {
+
+    @Test
+    public void encodeDecode() {
+        CacheEntry cacheEntry = new CacheEntry()
+                .setResult("välue".getBytes(StandardCharsets.UTF_8))
+                .setDateCreated(1552241431L)
+                .setRefreshAfterDate(1552241441L)
+                .setPurgeAfterDate(1552241491L)
+                .setRefreshAfterCount(3);
+
+        byte[] bytes = CacheEntryCodec.encode(cacheEntry);
+        CacheEntry decoded = CacheEntryCodec.decode("table.key", bytes);
+
+        assertFalse(CacheEntryCodec.isLegacy(bytes));
+        assertEquals("välue", new String(decoded.getResult(), StandardCharsets.UTF_8));
+        assertEquals("table.key", decoded.getRocksDbKey());
+        assertEquals(1552241431L, (long) decoded.getDateCreated());
+        assertEquals(1552241441L, (long) decoded.getRefreshAfterDate());
+        assertEquals(1552241491L, (long) decoded.getPurgeAfterDate());
+        assertEquals(3, (int) decoded.getRefreshAfterCount());
+    }
+
+    @Test
+    public void encodeDecodeNullResult() {
+        CacheEntry cacheEntry = new CacheEntry()
+                .setDateCreated(1L)
+                .setRefreshAfterDate(0L)
+                .setPurgeAfterDate(0L)
+                .setRefreshAfterCount(0);
+
+        CacheEntry decoded = CacheEntryCodec.decode("table.key", CacheEntryCodec.encode(cacheEntry));
+
+        assertNull(decoded.getResult());
+        assertEquals(1L, (long) decoded.getDateCreated());
+    }
+
+    @Test
+    public void decodeLegacyEntry() {
+        CacheEntry cacheEntry = new CacheEntry()
+                .setResult("value".getBytes(StandardCharsets.UTF_8))
+                .setRocksDbKey("table.key")
+                .setDateCreated(1L)
+                .setRefreshAfterDate(2L)
+                .setPurgeAfterDate(3L)
+                .setRefreshAfterCount(4);
+
+        byte[] bytes = SerializationUtils.serialize(cacheEntry);
+
+        assertTrue(CacheEntryCodec.isLegacy(bytes));
+        assertEquals(cacheEntry, CacheEntryCodec.decode("table.key", bytes));
+    }
+
+    @Test
+    public void encodeDecodeCompressed() {
+        byte[] result = StringUtils.repeat("{\"value\":\"välue\"},", 1000).getBytes(StandardCharsets.UTF_8);
+
+        for (ResultCompression compression : ResultCompression.values()) {
+            byte[] bytes = CacheEntryCodec.encode(new CacheEntry().setResult(result).setRefreshAfterCount(3), compression);
+            CacheEntry decoded = CacheEntryCodec.decode("table.key", bytes);
+
+            assertArrayEquals(result, decoded.getResult());
+            assertEquals(3, (int) decoded.getRefreshAfterCount());
+            if (compression != ResultCompression.NONE) {
+                assertTrue(bytes.length < result.length);
+            }
+        }
+    }
+
+    @Test
+    public void encodeIncompressibleUncompressed() {
+        byte[] result = new byte[256];
+        new Random(1).nextBytes(result);
+
+        byte[] bytes = CacheEntryCodec.encode(new CacheEntry().setResult(result), ResultCompression.ZSTD);
+
+        assertEquals(CacheEntryCodec.HEADER_SIZE + result.length, bytes.length);
+        assertArrayEquals(result, CacheEntryCodec.decode("table.key", bytes).getResult());
+    }
+
+    @Test
+    public void encodeDecodeChunked() {
+        CacheEntry cacheEntry = new CacheEntry()
+                .setChunkedResult(new ChunkedResult().setGeneration(42L).setChunkCount(3).setLength(3_000_000L))
+                .setDateCreated(1L)
+                .setPurgeAfterDate(5L)
+                .setRefreshAfterCount(2);
+
+        byte[] bytes = CacheEntryCodec.encode(cacheEntry, ResultCompression.LZ4);
+        CacheEntry decoded = CacheEntryCodec.decode("table.key", bytes);
+
+        assertEquals(CacheEntryCodec.CHUNKED_HEADER_SIZE, bytes.length);
+        assertNull(decoded.getResult());
+        assertEquals(cacheEntry.getChunkedResult(), decoded.getChunkedResult());
+        assertEquals(5L, (long) decoded.getPurgeAfterDate());
+        assertEquals(cacheEntry.getChunkedResult(), CacheEntryCodec.decodeHeader(bytes).getChunkedResult());
+    }
+
+    @Test
+    public void encodeDecodeWithKey() {
+        byte[] key = "sëlect * from sales".getBytes(StandardCharsets.UTF_8);
+        byte[] result = StringUtils.repeat("{\"value\":\"välue\"},", 100).getBytes(StandardCharsets.UTF_8);
+
+        for (ResultCompression compression : ResultCompression.values()) {
+            byte[] bytes = CacheEntryCodec.encode(new CacheEntry().setResult(result), compression, key);
+
+            assertArrayEquals(result, CacheEntryCodec.decode("table.key", bytes).getResult());
+            assertArrayEquals(key, CacheEntryCodec.decodeKey(bytes));
+        }
+        CacheEntry chunked = new CacheEntry()
+                .setChunkedResult(new ChunkedResult().setGeneration(42L).setChunkCount(3).setLength(3_000_000L));
+        byte[] bytes = CacheEntryCodec.encode(chunked, ResultCompression.NONE, key);
+        assertEquals(chunked.getChunkedResult(), CacheEntryCodec.decodeHeader(bytes).getChunkedResult());
+        assertArrayEquals(key, CacheEntryCodec.decodeKey(bytes));
+        assertNull(CacheEntryCodec.decodeKey(CacheEntryCodec.encode(chunked)));
+    }
+
+    @Test
+    public void withKey() {
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = CacheEntryCodec.withKey(CacheEntryCodec.encode(new CacheEntry()
+                .setResult("value".getBytes(StandardCharsets.UTF_8))
+                .setRefreshAfterCount(3), ResultCompression.NONE), key);
+
+        CacheEntry decoded = CacheEntryCodec.decode("table.key", bytes);
+
+        assertEquals("value", new String(decoded.getResult(), StandardCharsets.UTF_8));
+        assertEquals(3, (int) decoded.getRefreshAfterCount());
+        assertArrayEquals(key, CacheEntryCodec.decodeKey(bytes));
+    }
+
+    @Test
+    public void encodeDecodeCount() {
+        byte[] bytes = CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(42));
+
+        assertEquals(8, bytes.length);
+        assertEquals(42, (int) CacheEntryCodec.decodeCount(bytes).getCount());
+    }
+
+    @Test
+    public void encodeDecodeCountWithSerializationMagic() {
+        // 0xACED in the low bytes of the little-endian count
+        byte[] bytes = CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(60844));
+
+        assertFalse(CacheEntryCodec.isLegacyCount(bytes));
+        assertEquals(60844, (int) CacheEntryCodec.decodeCount(bytes).getCount());
+    }
+
+    @Test
+    public void decodeLegacyCount() {
+        byte[] bytes = SerializationUtils.serialize(new CacheCountEntry().setCount(7));
+
+        assertEquals(7, (int) CacheEntryCodec.decodeCount(bytes).getCount());
+    }
+
+    @Test(expected = CacheRuntimeException.class)
+    public void decodeUnknownVersion() {
+        byte[] bytes = CacheEntryCodec.encode(new CacheEntry().setResult("value".getBytes(StandardCharsets.UTF_8)));
+        bytes[0] = 99;
+
+        CacheEntryCodec.decode("table.key", bytes);
+    }
+}
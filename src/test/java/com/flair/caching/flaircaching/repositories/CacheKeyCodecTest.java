@@ -0,0 +1,48 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheKeyCodecTest {
+
+    @Test
+    public void encodeDecode() {
+        byte[] bytes = CacheKeyCodec.encode(42, "select * from sales.orders where name = 'välue'");
+
+        assertEquals(42, CacheKeyCodec.decodeTableId(bytes));
+        assertEquals("select * from sales.orders where name = 'välue'", CacheKeyCodec.decodeKey(bytes));
+        assertFalse(CacheKeyCodec.isLegacy(bytes));
+    }
+
+    @Test
+    public void encodeKeepsKeyOrderWithinTable() {
+        assertTrue(UnsignedBytes.lexicographicalComparator()
+                .compare(CacheKeyCodec.encode(1, "a"), CacheKeyCodec.encode(1, "b")) < 0);
+        assertTrue(UnsignedBytes.lexicographicalComparator()
+                .compare(CacheKeyCodec.encode(1, "zzz"), CacheKeyCodec.encode(2, "a")) < 0);
+        assertTrue(UnsignedBytes.lexicographicalComparator()
+                .compare(CacheKeyCodec.encode(CacheKeyCodec.MAX_TABLE_ID, "a"), new byte[]{1}) < 0);
+    }
+
+    @Test
+    public void encodeDigestSortsAfterKeysOfTable() {
+        byte[] digest = CacheKeyCodec.encodeDigest(1, KeyDigest.SHA_256.digest("key".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(CacheKeyCodec.isDigest(digest));
+        assertFalse(CacheKeyCodec.isDigest(CacheKeyCodec.encode(1, "\uffff")));
+        assertTrue(UnsignedBytes.lexicographicalComparator().compare(CacheKeyCodec.encode(1, "\uffff"), digest) < 0);
+        assertTrue(UnsignedBytes.lexicographicalComparator().compare(digest, CacheKeyCodec.encode(2, "")) < 0);
+    }
+
+    @Test
+    public void isLegacy() {
+        assertTrue(CacheKeyCodec.isLegacy("table.key".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(CacheKeyCodec.isLegacy(CacheKeyCodec.encode(CacheKeyCodec.MAX_TABLE_ID, "")));
+    }
+}
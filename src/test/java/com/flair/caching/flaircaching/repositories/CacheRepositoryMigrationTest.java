@@ -0,0 +1,325 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.config.RocksDbProperties;
+import com.flair.caching.flaircaching.dto.CacheCountEntry;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.DBOptions;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class CacheRepositoryMigrationTest {
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RocksDbProperties rocksDbProperties;
+
+    @Before
+    public void setUp() {
+        rocksDbProperties = new RocksDbProperties();
+        rocksDbProperties.setPath(folder.getRoot().toPath().resolve("cache").toString());
+    }
+
+    @Test
+    public void migrateSerializedRecords() throws Exception {
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath(), "entries", "counts")) {
+            db.put("entries", bytes("sales.key.1"), SerializationUtils.serialize(new CacheEntry()
+                    .setResult(bytes("result 1"))
+                    .setRocksDbKey("sales.key.1")
+                    .setDateCreated(1L)
+                    .setRefreshAfterDate(5L)
+                    .setPurgeAfterDate(200L)
+                    .setRefreshAfterCount(10)));
+            db.put("counts", bytes("sales.key.1"), SerializationUtils.serialize(new CacheCountEntry().setCount(3)));
+            // already binary, left by an interrupted migration, starts with the serialization magic
+            db.put("entries", bytes("sales.key.2"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("result 2"))
+                    .setPurgeAfterDate(200L)));
+            db.put("counts", bytes("sales.key.2"), CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(60844)));
+            db.put("entries", bytes("sales.expired"), SerializationUtils.serialize(new CacheEntry()
+                    .setResult(bytes("expired"))
+                    .setDateCreated(1L)
+                    .setPurgeAfterDate(50L)));
+        }
+
+        CacheRepository cacheRepository = openMigrated();
+        try {
+            CacheEntryResult result = cacheRepository.getResult("sales", "key.1");
+            assertArrayEquals(bytes("result 1"), result.getCacheEntry().getResult());
+            assertEquals("sales.key.1", result.getCacheEntry().getRocksDbKey());
+            assertEquals(Long.valueOf(1), result.getCacheEntry().getDateCreated());
+            assertEquals(Long.valueOf(5), result.getCacheEntry().getRefreshAfterDate());
+            assertEquals(Long.valueOf(200), result.getCacheEntry().getPurgeAfterDate());
+            assertEquals(Integer.valueOf(10), result.getCacheEntry().getRefreshAfterCount());
+            assertEquals(Integer.valueOf(3), result.getCacheCountEntry().getCount());
+            assertEquals(Integer.valueOf(60844), cacheRepository.getResult("sales", "key.2").getCacheCountEntry()
+                    .getCount());
+
+            assertArrayEquals(bytes("expired"), cacheRepository.getResult("sales", "expired").getCacheEntry().getResult());
+            assertEquals(1, cacheRepository.purge(100, 10, RateLimiter.create(Double.MAX_VALUE)));
+            assertNull(cacheRepository.getResult("sales", "expired").getCacheEntry());
+            assertEquals(0, cacheRepository.purge(150, 10, RateLimiter.create(Double.MAX_VALUE)));
+        } finally {
+            cacheRepository.shutdown();
+        }
+
+        assertMigrated("entries", "counts");
+    }
+
+    @Test
+    public void migrateWithoutExpiryIndex() throws Exception {
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath(), "entries", "counts")) {
+            db.put("default", bytes("format.version"), new byte[]{1});
+            db.put("entries", bytes("sales.key.1"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("result 1"))
+                    .setDateCreated(1L)
+                    .setPurgeAfterDate(200L)));
+            db.put("counts", bytes("sales.key.1"), CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(4)));
+            db.put("entries", bytes("sales.key.2"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("result 2"))
+                    .setDateCreated(1L)
+                    .setPurgeAfterDate(50L)));
+            db.put("entries", bytes("sales.forever"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("forever"))
+                    .setDateCreated(1L)));
+        }
+
+        CacheRepository cacheRepository = openMigrated();
+        try {
+            CacheEntryResult result = cacheRepository.getResult("sales", "key.1");
+            assertArrayEquals(bytes("result 1"), result.getCacheEntry().getResult());
+            assertEquals(Long.valueOf(200), result.getCacheEntry().getPurgeAfterDate());
+            assertEquals(Integer.valueOf(4), result.getCacheCountEntry().getCount());
+            assertArrayEquals(bytes("result 2"), cacheRepository.getResult("sales", "key.2").getCacheEntry().getResult());
+
+            assertEquals(1, cacheRepository.purge(100, 10, RateLimiter.create(Double.MAX_VALUE)));
+            assertNull(cacheRepository.getResult("sales", "key.2").getCacheEntry());
+            assertEquals(1, cacheRepository.purge(300, 10, RateLimiter.create(Double.MAX_VALUE)));
+            assertNull(cacheRepository.getResult("sales", "key.1").getCacheEntry());
+            assertArrayEquals(bytes("forever"), cacheRepository.getResult("sales", "forever").getCacheEntry().getResult());
+        } finally {
+            cacheRepository.shutdown();
+        }
+
+        assertMigrated("entries", "counts");
+    }
+
+    @Test
+    public void migrateStringKeys() throws Exception {
+        rocksDbProperties.setKeyDigestMinLength(32);
+        String longKey = StringUtils.repeat("x", 40);
+        ChunkedResult chunkedResult = new ChunkedResult().setGeneration(7).setChunkCount(2).setLength(6);
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath(), "entries", "counts", "expiry", "chunks",
+                "entries:1:dedicated", "counts:1:dedicated", "expiry:1:dedicated", "chunks:1:dedicated")) {
+            db.put("default", bytes("format.version"), new byte[]{2});
+            db.put("entries", bytes("sales.key.1"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("result 1"))
+                    .setDateCreated(1L)
+                    .setPurgeAfterDate(200L)));
+            db.put("counts", bytes("sales.key.1"), CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(5)));
+            db.put("expiry", expiryKey(200, bytes("sales.key.1")), new byte[0]);
+
+            db.put("entries", bytes("sales.chunked"), CacheEntryCodec.encode(new CacheEntry()
+                    .setDateCreated(1L)
+                    .setChunkedResult(chunkedResult)));
+            db.put("chunks", CacheRepository.getChunkKey(bytes("sales.chunked"), 7, 0), bytes("abc"));
+            db.put("chunks", CacheRepository.getChunkKey(bytes("sales.chunked"), 7, 1), bytes("def"));
+
+            db.put("entries", bytes("sales." + longKey), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("long"))
+                    .setDateCreated(1L)
+                    .setPurgeAfterDate(50L)));
+            db.put("counts", bytes("sales." + longKey), CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(6)));
+            db.put("expiry", expiryKey(50, bytes("sales." + longKey)), new byte[0]);
+
+            db.put("entries:1:dedicated", bytes("dedicated.key"), CacheEntryCodec.encode(new CacheEntry()
+                    .setResult(bytes("dedicated"))
+                    .setDateCreated(1L)));
+            db.put("counts:1:dedicated", bytes("dedicated.key"),
+                    CacheEntryCodec.encodeCount(new CacheCountEntry().setCount(7)));
+        }
+
+        CacheRepository cacheRepository = openMigrated();
+        try {
+            CacheEntryResult result = cacheRepository.getResult("sales", "key.1");
+            assertArrayEquals(bytes("result 1"), result.getCacheEntry().getResult());
+            assertEquals(Integer.valueOf(5), result.getCacheCountEntry().getCount());
+
+            CacheEntry chunked = cacheRepository.getResult("sales", "chunked").getCacheEntry();
+            assertEquals(chunkedResult, chunked.getChunkedResult());
+            try (ChunkIterator chunks = cacheRepository.openChunks("sales", "chunked", chunked.getChunkedResult())) {
+                assertArrayEquals(bytes("abc"), chunks.next());
+                assertArrayEquals(bytes("def"), chunks.next());
+                assertFalse(chunks.hasNext());
+            }
+
+            result = cacheRepository.getResult("sales", longKey);
+            assertArrayEquals(bytes("long"), result.getCacheEntry().getResult());
+            assertEquals(Integer.valueOf(6), result.getCacheCountEntry().getCount());
+
+            result = cacheRepository.getResult("dedicated", "key");
+            assertArrayEquals(bytes("dedicated"), result.getCacheEntry().getResult());
+            assertEquals(Integer.valueOf(7), result.getCacheCountEntry().getCount());
+
+            assertEquals(1, cacheRepository.purge(100, 10, RateLimiter.create(Double.MAX_VALUE)));
+            assertNull(cacheRepository.getResult("sales", longKey).getCacheEntry());
+            assertEquals(1, cacheRepository.purge(300, 10, RateLimiter.create(Double.MAX_VALUE)));
+            assertNull(cacheRepository.getResult("sales", "key.1").getCacheEntry());
+        } finally {
+            cacheRepository.shutdown();
+        }
+
+        assertMigrated("entries", "counts", "entries:1:dedicated", "counts:1:dedicated");
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath())) {
+            // the chunks of the moved entry only, the expiry records were purged along with their entries
+            assertEquals(2, db.count("chunks"));
+            assertEquals(0, db.count("expiry"));
+        }
+    }
+
+    private static byte[] expiryKey(long purgeAfterDate, byte[] cacheKeyBytes) {
+        return ByteBuffer.allocate(Long.BYTES + cacheKeyBytes.length)
+                .putLong(purgeAfterDate)
+                .put(cacheKeyBytes)
+                .array();
+    }
+
+    private CacheRepository openMigrated() throws Exception {
+        CacheRepository cacheRepository = new CacheRepository(rocksDbProperties, new SimpleMeterRegistry());
+        cacheRepository.init();
+        cacheRepository.awaitMigration(30, TimeUnit.SECONDS);
+        return cacheRepository;
+    }
+
+    /**
+     * Asserts the stored version is current and no string keys are left in the given families.
+     */
+    private void assertMigrated(String... columnFamilies) throws RocksDBException {
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath())) {
+            assertArrayEquals(new byte[]{3}, db.get("default", bytes("format.version")));
+            for (String columnFamily : columnFamilies) {
+                assertFalse(columnFamily, db.hasLegacyKeys(columnFamily));
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A db opened without the repository, to write older layouts and read back what the repository stored.
+     */
+    static final class RawDb implements AutoCloseable {
+
+        private final DBOptions dbOptions;
+        private final List<ColumnFamilyOptions> cfOptions = new ArrayList<>();
+        private final List<ColumnFamilyHandle> cfHandles = new ArrayList<>();
+        private final Map<String, ColumnFamilyHandle> byName = new HashMap<>();
+        private final RocksDB db;
+
+        private RawDb(String path, List<String> cfNames) throws RocksDBException {
+            dbOptions = new DBOptions().setCreateIfMissing(true).setCreateMissingColumnFamilies(true);
+            List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+            for (String cfName : cfNames) {
+                ColumnFamilyOptions options = new ColumnFamilyOptions();
+                if (cfName.startsWith(CacheRepository.COL_COUNTS)) {
+                    options.setMergeOperatorName("uint64add");
+                }
+                cfOptions.add(options);
+                descriptors.add(new ColumnFamilyDescriptor(bytes(cfName), options));
+            }
+            db = RocksDB.open(dbOptions, path, descriptors, cfHandles);
+            for (int i = 0; i < cfNames.size(); i++) {
+                byName.put(cfNames.get(i), cfHandles.get(i));
+            }
+        }
+
+        /**
+         * Opens the db with the given families, or with all of its families if none are given.
+         */
+        static RawDb open(String path, String... columnFamilies) throws RocksDBException {
+            List<String> cfNames = new ArrayList<>();
+            cfNames.add("default");
+            if (columnFamilies.length > 0) {
+                for (String columnFamily : columnFamilies) {
+                    cfNames.add(columnFamily);
+                }
+            } else {
+                try (Options options = new Options()) {
+                    for (byte[] cfName : RocksDB.listColumnFamilies(options, path)) {
+                        String name = new String(cfName, StandardCharsets.UTF_8);
+                        if (!cfNames.contains(name)) {
+                            cfNames.add(name);
+                        }
+                    }
+                }
+            }
+            return new RawDb(path, cfNames);
+        }
+
+        void put(String columnFamily, byte[] key, byte[] value) throws RocksDBException {
+            db.put(byName.get(columnFamily), key, value);
+        }
+
+        byte[] get(String columnFamily, byte[] key) throws RocksDBException {
+            return db.get(byName.get(columnFamily), key);
+        }
+
+        int count(String columnFamily) throws RocksDBException {
+            int count = 0;
+            try (RocksIterator itr = db.newIterator(byName.get(columnFamily))) {
+                for (itr.seekToFirst(); itr.isValid(); itr.next()) {
+                    count++;
+                }
+                itr.status();
+            }
+            return count;
+        }
+
+        boolean hasLegacyKeys(String columnFamily) throws RocksDBException {
+            try (RocksIterator itr = db.newIterator(byName.get(columnFamily))) {
+                itr.seek(new byte[]{1});
+                itr.status();
+                return itr.isValid();
+            }
+        }
+
+        @Override
+        public void close() {
+            cfHandles.forEach(ColumnFamilyHandle::close);
+            db.close();
+            cfOptions.forEach(ColumnFamilyOptions::close);
+            dbOptions.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.config.RocksDbProperties;
+import com.flair.caching.flaircaching.dto.CacheCountEntry;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import com.flair.caching.flaircaching.repositories.CacheRepositoryMigrationTest.RawDb;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CacheRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RocksDbProperties rocksDbProperties;
+    private CacheRepository cacheRepository;
+
+    @Before
+    public void setUp() {
+        rocksDbProperties = new RocksDbProperties();
+        rocksDbProperties.setPath(folder.getRoot().toPath().resolve("cache").toString());
+    }
+
+    @After
+    public void tearDown() {
+        if (cacheRepository != null) {
+            cacheRepository.shutdown();
+        }
+    }
+
+    @Test
+    public void ttlKeepsFormatVersion() throws Exception {
+        rocksDbProperties.setTtlSeconds(1);
+        open();
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value")), 1L);
+        cacheRepository.awaitMigration(30, TimeUnit.SECONDS);
+        cacheRepository.shutdown();
+
+        Thread.sleep(2100);
+        open();
+        cacheRepository.compactAll();
+        cacheRepository.shutdown();
+        cacheRepository = null;
+
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath())) {
+            // ttl records carry a 4 byte timestamp suffix
+            byte[] formatVersion = db.get("default", bytes("format.version"));
+            assertNotNull(formatVersion);
+            assertEquals(5, formatVersion.length);
+            assertEquals(3, formatVersion[0]);
+        }
+
+        open();
+        assertEquals(null, cacheRepository.getResult("table", "key").getCacheEntry());
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value 2")), 1L);
+        assertArrayEquals(bytes("value 2"), cacheRepository.getResult("table", "key").getCacheEntry().getResult());
+    }
+
+    @Test
+    public void tableIdsAssignedOnPut() throws Exception {
+        open();
+        CacheKey cacheKey = new CacheKey("table", "key");
+        assertNull(cacheRepository.getResult("table", "key").getCacheEntry());
+        assertNull(cacheRepository.getResults(Arrays.asList(cacheKey, new CacheKey("other", "key"))).get(cacheKey)
+                .getCacheEntry());
+        assertEquals(0, cacheRepository.invalidate("table", ""));
+        cacheRepository.incrementCounts(Collections.singletonMap(cacheKey, 1));
+        cacheRepository.deleteChunks("table", "key", new ChunkedResult().setGeneration(1).setChunkCount(1));
+        cacheRepository.shutdown();
+        cacheRepository = null;
+
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath())) {
+            assertEquals(0, db.count("table-ids"));
+            assertEquals(0, db.count("counts"));
+        }
+
+        open();
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value")), 1L);
+        cacheRepository.incrementCounts(Collections.singletonMap(cacheKey, 2));
+        CacheEntryResult result = cacheRepository.getResult("table", "key");
+        assertArrayEquals(bytes("value"), result.getCacheEntry().getResult());
+        assertEquals(Integer.valueOf(2), result.getCacheCountEntry().getCount());
+        assertNull(cacheRepository.getResult("other", "key").getCacheEntry());
+        cacheRepository.shutdown();
+        cacheRepository = null;
+
+        try (RawDb db = RawDb.open(rocksDbProperties.getPath())) {
+            assertEquals(1, db.count("table-ids"));
+        }
+    }
+
+    @Test
+    public void writeBehindKeepsCountsMergedAfterPut() throws Exception {
+        rocksDbProperties.getWriteBehind().setEnabled(true);
+        rocksDbProperties.getWriteBehind().setFlushIntervalMillis(60_000);
+        open();
+        CacheKey cacheKey = new CacheKey("table", "key");
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value")), 1L);
+        cacheRepository.flushWrites();
+        cacheRepository.incrementCounts(Collections.singletonMap(cacheKey, 5));
+
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value 2")
+                .setCacheCountEntry(new CacheCountEntry().setCount(0))), 1L);
+        cacheRepository.incrementCounts(Collections.singletonMap(cacheKey, 2));
+        CacheEntryResult result = cacheRepository.getResult("table", "key");
+        assertArrayEquals(bytes("value 2"), result.getCacheEntry().getResult());
+        assertEquals(Integer.valueOf(2), result.getCacheCountEntry().getCount());
+
+        cacheRepository.flushWrites();
+        result = cacheRepository.getResult("table", "key");
+        assertArrayEquals(bytes("value 2"), result.getCacheEntry().getResult());
+        assertEquals(Integer.valueOf(2), result.getCacheCountEntry().getCount());
+    }
+
+    @Test
+    public void separateWalDir() throws Exception {
+        Path walDir = folder.getRoot().toPath().resolve("wal");
+        rocksDbProperties.setWalDir(walDir.toString());
+        open();
+        cacheRepository.putResults(Collections.singletonList(putEntry("key", "value")), 1L);
+        cacheRepository.shutdown();
+
+        assertTrue(listLogs(walDir).size() > 0);
+        assertEquals(Collections.emptyList(), listLogs(Paths.get(rocksDbProperties.getPath())));
+        open();
+        assertArrayEquals(bytes("value"), cacheRepository.getResult("table", "key").getCacheEntry().getResult());
+    }
+
+    @Test
+    public void rejectsEmptyPath() {
+        rocksDbProperties.setPath("");
+
+        assertRejected("Rocksdb path is not configured");
+    }
+
+    @Test
+    public void rejectsDbPathWithoutPath() {
+        rocksDbProperties.setDbPaths(Collections.singletonList(dbPath("", 0)));
+
+        assertRejected("Db path 0 has no path");
+    }
+
+    @Test
+    public void rejectsDbPathWithoutTargetSize() {
+        String data = folder.getRoot().toPath().resolve("data").toString();
+        rocksDbProperties.setDbPaths(Arrays.asList(dbPath(data, 0), dbPath(data + "2", 0)));
+
+        assertRejected("Db path " + data + " has no target size");
+    }
+
+    @Test
+    public void rejectsDuplicateDbPath() {
+        String data = folder.getRoot().toPath().resolve("data").toString();
+        rocksDbProperties.setDbPaths(Arrays.asList(dbPath(data, 1024), dbPath(data + "/../data", 0)));
+
+        assertRejected("Db path " + data + "/../data is configured twice");
+    }
+
+    @Test
+    public void rejectsCheckpointsWithDbPaths() {
+        rocksDbProperties.setDbPaths(Collections.singletonList(
+                dbPath(folder.getRoot().toPath().resolve("data").toString(), 0)));
+        rocksDbProperties.getCheckpoints().setEnabled(true);
+
+        assertRejected("Checkpoints are not supported with db paths");
+    }
+
+    @Test
+    public void rejectsUncreatableDir() throws Exception {
+        Path file = folder.newFile().toPath();
+        rocksDbProperties.setWalDir(file.resolve("wal").toString());
+
+        assertRejected("Cannot create directory " + file.resolve("wal"));
+    }
+
+    @Test
+    public void rejectsUnwritableDir() throws Exception {
+        File walDir = folder.newFolder("wal");
+        assertTrue(walDir.setWritable(false, false));
+        // root writes to any directory
+        Assume.assumeFalse(Files.isWritable(walDir.toPath()));
+        rocksDbProperties.setWalDir(walDir.toString());
+
+        assertRejected("Directory " + walDir + " is not writable");
+    }
+
+    private void assertRejected(String message) {
+        CacheRepository rejected = new CacheRepository(rocksDbProperties, new SimpleMeterRegistry());
+        try {
+            rejected.init();
+            rejected.shutdown();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(message, e.getMessage());
+        } catch (RocksDBException e) {
+            throw new AssertionError(e);
+        }
+        assertFalse(Files.exists(Paths.get(rocksDbProperties.getPath(), "CURRENT")));
+    }
+
+    private static RocksDbProperties.DbPathOptions dbPath(String path, long targetSize) {
+        RocksDbProperties.DbPathOptions dbPath = new RocksDbProperties.DbPathOptions();
+        dbPath.setPath(path);
+        dbPath.setTargetSize(targetSize);
+        return dbPath;
+    }
+
+    private static List<Path> listLogs(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(it -> it.getFileName().toString().endsWith(".log")).collect(Collectors.toList());
+        }
+    }
+
+    private void open() throws Exception {
+        cacheRepository = new CacheRepository(rocksDbProperties, new SimpleMeterRegistry());
+        cacheRepository.init();
+    }
+
+    private static CachePutEntry putEntry(String key, String value) {
+        return new CachePutEntry()
+                .setTable("table")
+                .setKey(key)
+                .setValue(bytes(value));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package com.flair.caching.flaircaching.repositories;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointsTest {
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void createAndRestore() throws Exception {
+        Path dbPath = folder.getRoot().toPath().resolve("cache");
+        Checkpoints checkpoints = new Checkpoints(folder.getRoot().toPath().resolve("checkpoints"), 2);
+
+        Path latest = null;
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, dbPath.toString())) {
+            for (int i = 0; i < 3; i++) {
+                db.put(bytes("key"), bytes("value" + i));
+                latest = checkpoints.create(db);
+                Thread.sleep(2);
+            }
+            db.put(bytes("key"), bytes("value after"));
+        }
+
+        assertEquals(2, checkpoints.list().size());
+        assertEquals(latest, checkpoints.list().get(1));
+
+        delete(dbPath);
+        assertEquals(latest, checkpoints.restoreLatest(dbPath));
+        try (Options options = new Options();
+             RocksDB db = RocksDB.open(options, dbPath.toString())) {
+            assertArrayEquals(bytes("value2"), db.get(bytes("key")));
+        }
+    }
+
+    @Test
+    public void createInSameMillisecond() throws Exception {
+        Path dbPath = folder.getRoot().toPath().resolve("cache");
+        Checkpoints checkpoints = new Checkpoints(folder.getRoot().toPath().resolve("checkpoints"), 3);
+
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, dbPath.toString())) {
+            db.put(bytes("key"), bytes("value"));
+            Path first = checkpoints.create(db);
+            Path second = checkpoints.create(db);
+            Path third = new Checkpoints(folder.getRoot().toPath().resolve("checkpoints"), 3).create(db);
+
+            assertEquals(Arrays.asList(first, second, third), checkpoints.list());
+        }
+    }
+
+    @Test
+    public void restoreWithWalDir() throws Exception {
+        Path dbPath = folder.getRoot().toPath().resolve("cache");
+        Path walPath = folder.getRoot().toPath().resolve("wal");
+        Checkpoints checkpoints = new Checkpoints(folder.getRoot().toPath().resolve("checkpoints"), 2);
+
+        try (Options options = new Options().setCreateIfMissing(true).setWalDir(walPath.toString());
+             RocksDB db = RocksDB.open(options, dbPath.toString())) {
+            db.put(bytes("key"), bytes("value"));
+            checkpoints.create(db);
+            db.put(bytes("key"), bytes("value after"));
+        }
+
+        delete(dbPath);
+        // the logs of the replaced db must not be replayed into the restored one
+        assertTrue(list(walPath, ".log").size() > 0);
+        checkpoints.restoreLatest(dbPath, walPath);
+
+        assertEquals(Collections.emptyList(), list(dbPath, ".log"));
+        assertTrue(list(walPath, ".log").size() > 0);
+        try (Options options = new Options().setWalDir(walPath.toString());
+             RocksDB db = RocksDB.open(options, dbPath.toString())) {
+            assertArrayEquals(bytes("value"), db.get(bytes("key")));
+        }
+    }
+
+    @Test
+    public void restoreWithoutCheckpoint() throws Exception {
+        Checkpoints checkpoints = new Checkpoints(folder.getRoot().toPath().resolve("checkpoints"), 2);
+
+        assertNull(checkpoints.restoreLatest(folder.getRoot().toPath().resolve("cache")));
+    }
+
+    private static void delete(Path path) throws Exception {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(it -> it.toFile().delete());
+        }
+    }
+
+    private static List<Path> list(Path dir, String suffix) throws Exception {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(it -> it.getFileName().toString().endsWith(suffix)).collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package com.flair.caching.flaircaching.repositories;
+
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindBufferTest {
+
+    private final List<List<WriteBehindBuffer.PendingPut>> written = new ArrayList<>();
+
+    @Test
+    public void replacePending() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Long.MAX_VALUE, written::add);
+        CacheEntry first = new CacheEntry();
+        CacheEntry second = new CacheEntry();
+
+        assertNull(buffer.add(put("key", "first"), first));
+        assertSame(first, buffer.add(put("key", "second"), second).getCacheEntry());
+        assertSame(second, buffer.get(new CacheKey("table", "key")).getCacheEntry());
+
+        buffer.flush();
+
+        assertEquals(1, written.size());
+        assertEquals(1, written.get(0).size());
+        assertSame(second, written.get(0).get(0).getCacheEntry());
+        assertNull(buffer.get(new CacheKey("table", "key")));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getPendingBytes());
+    }
+
+    @Test
+    public void flushWhenFull() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(1000, written::add);
+
+        for (int i = 0; i < 10; i++) {
+            buffer.add(put("key" + i, "value"), new CacheEntry());
+        }
+
+        assertEquals(1, written.size());
+        assertEquals(8, written.get(0).size());
+        assertEquals(2 * written.get(0).get(0).getSize(), buffer.getPendingBytes());
+    }
+
+    @Test
+    public void failedAddIsNotKept() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(1000, this::failWrite);
+        for (int i = 0; i < 8; i++) {
+            buffer.add(put("key" + i, "value"), new CacheEntry());
+        }
+        long pendingBytes = buffer.getPendingBytes();
+
+        try {
+            buffer.add(put("key8", "value"), new CacheEntry());
+            fail();
+        } catch (CacheRuntimeException e) {
+            assertNull(buffer.get(new CacheKey("table", "key8")));
+            assertEquals(pendingBytes, buffer.getPendingBytes());
+        }
+    }
+
+    @Test
+    public void dropAfterRepeatedFailedFlushes() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Long.MAX_VALUE, this::failWrite);
+        buffer.add(put("key", "value"), new CacheEntry());
+
+        for (int i = 1; i <= WriteBehindBuffer.MAX_FAILED_FLUSHES; i++) {
+            try {
+                buffer.flush();
+                fail();
+            } catch (CacheRuntimeException e) {
+                assertEquals(i < WriteBehindBuffer.MAX_FAILED_FLUSHES, !buffer.isEmpty());
+            }
+        }
+        assertNull(buffer.get(new CacheKey("table", "key")));
+        assertEquals(0, buffer.getPendingBytes());
+    }
+
+    @Test
+    public void keepPutReplacedDuringFlush() {
+        CacheEntry newer = new CacheEntry();
+        WriteBehindBuffer[] buffer = new WriteBehindBuffer[1];
+        buffer[0] = new WriteBehindBuffer(Long.MAX_VALUE, puts -> buffer[0].add(put("key", "newer"), newer));
+        buffer[0].add(put("key", "older"), new CacheEntry());
+
+        buffer[0].flush();
+
+        assertSame(newer, buffer[0].get(new CacheKey("table", "key")).getCacheEntry());
+    }
+
+    private void failWrite(List<WriteBehindBuffer.PendingPut> puts) {
+        throw new CacheRuntimeException("Write failed");
+    }
+
+    private static CachePutEntry put(String key, String value) {
+        return new CachePutEntry()
+                .setTable("table")
+                .setKey(key)
+                .setValue(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
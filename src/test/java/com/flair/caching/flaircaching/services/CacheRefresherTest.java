@@ -0,0 +1,137 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheRefresherTest {
+
+    private final CacheProperties cacheProperties = new CacheProperties();
+    private final BlockingQueue<CachePutEntry> written = new ArrayBlockingQueue<>(10);
+    private final CountDownLatch loadsReleased = new CountDownLatch(1);
+    private final AtomicInteger released = new AtomicInteger();
+    private CacheRefresher cacheRefresher;
+
+    @After
+    public void tearDown() {
+        loadsReleased.countDown();
+        if (cacheRefresher != null) {
+            cacheRefresher.shutdown();
+        }
+    }
+
+    @Test
+    public void refreshWithoutLoader() {
+        cacheRefresher = new CacheRefresher(Optional.empty(), cacheProperties, new SimpleMeterRegistry());
+
+        assertFalse(cacheRefresher.refresh(new CacheKey("table", "key"), written::add, released::incrementAndGet));
+    }
+
+    @Test
+    public void refreshLoadsOncePerKey() throws Exception {
+        cacheRefresher = new CacheRefresher(Optional.of(this::load), cacheProperties, new SimpleMeterRegistry());
+        CacheKey cacheKey = new CacheKey("table", "key");
+
+        assertTrue(cacheRefresher.refresh(cacheKey, written::add, released::incrementAndGet));
+        assertTrue(cacheRefresher.refresh(cacheKey, written::add, released::incrementAndGet));
+        // the lease of the second refresh, the first one ends with the write
+        assertEquals(1, released.get());
+        loadsReleased.countDown();
+
+        CachePutEntry putEntry = written.poll(5, TimeUnit.SECONDS);
+        assertEquals("table", putEntry.getTable());
+        assertEquals("key", putEntry.getKey());
+        assertEquals("value", new String(putEntry.getValue(), StandardCharsets.UTF_8));
+        assertEquals(null, written.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void refreshLimitedPerTable() {
+        cacheProperties.getLoader().getTables().put("limited", 0.001);
+        cacheRefresher = new CacheRefresher(Optional.of(this::load), cacheProperties, new SimpleMeterRegistry());
+
+        assertTrue(cacheRefresher.refresh(new CacheKey("limited", "key1"), written::add, released::incrementAndGet));
+        assertFalse(cacheRefresher.refresh(new CacheKey("limited", "key2"), written::add, released::incrementAndGet));
+        assertTrue(cacheRefresher.refresh(new CacheKey("table", "key2"), written::add, released::incrementAndGet));
+    }
+
+    @Test
+    public void tablesBeyondMaxTablesShareTagAndLimit() {
+        cacheProperties.getMetrics().setMaxTables(1);
+        cacheProperties.getLoader().setMaxLoadsPerSecond(0.001);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        cacheRefresher = new CacheRefresher(Optional.of(this::load), cacheProperties, meterRegistry);
+
+        assertTrue(cacheRefresher.refresh(new CacheKey("table1", "key"), written::add, released::incrementAndGet));
+        assertTrue(cacheRefresher.refresh(new CacheKey("table2", "key"), written::add, released::incrementAndGet));
+        assertFalse(cacheRefresher.refresh(new CacheKey("table3", "key"), written::add, released::incrementAndGet));
+
+        assertEquals(1, meterRegistry.get("cache.loader.loads").meters().size());
+        assertEquals(1, meterRegistry.get("cache.loader.loads").tags("table", "other", "result", "rate_limited")
+                .counter().count(), 0);
+    }
+
+    @Test
+    public void emptyLoadReleasesLease() throws Exception {
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+        cacheRefresher = new CacheRefresher(Optional.of((table, key) -> null), cacheProperties, new SimpleMeterRegistry());
+        CacheKey cacheKey = new CacheKey("table", "key");
+        CountDownLatch leaseReleased = new CountDownLatch(1);
+
+        Long token = refreshLeases.acquire(cacheKey);
+        assertTrue(cacheRefresher.refresh(cacheKey, written::add, () -> {
+            refreshLeases.release(cacheKey, token);
+            leaseReleased.countDown();
+        }));
+
+        assertTrue(leaseReleased.await(5, TimeUnit.SECONDS));
+        assertNull(written.poll());
+        assertNotNull(refreshLeases.acquire(cacheKey));
+    }
+
+    @Test
+    public void failedLoadReleasesLease() throws Exception {
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+        cacheRefresher = new CacheRefresher(Optional.of((table, key) -> {
+            throw new IllegalStateException("Backend down");
+        }), cacheProperties, new SimpleMeterRegistry());
+        CacheKey cacheKey = new CacheKey("table", "key");
+        CountDownLatch leaseReleased = new CountDownLatch(1);
+
+        Long token = refreshLeases.acquire(cacheKey);
+        assertTrue(cacheRefresher.refresh(cacheKey, written::add, () -> {
+            refreshLeases.release(cacheKey, token);
+            leaseReleased.countDown();
+        }));
+
+        assertTrue(leaseReleased.await(5, TimeUnit.SECONDS));
+        assertNotNull(refreshLeases.acquire(cacheKey));
+    }
+
+    private CachePutEntry load(String table, String key) {
+        try {
+            loadsReleased.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new CachePutEntry()
+                .setValue("value".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -2,32 +2,153 @@ package com.flair.caching.flaircaching.services;
 
 import com.flair.caching.flaircaching.AbstractIntTest;
 import com.flair.caching.flaircaching.dto.CacheEntryWrapper;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class CacheServiceIntTest extends AbstractIntTest {
 
     @Autowired
     private CacheService cacheService;
 
+    @Autowired
+    private HotCache hotCache;
+
+    @Autowired
+    private CountAggregator countAggregator;
+
     @Test
     public void purgeOnlyCacheEntry() {
         String key = "key" + Math.random() + System.currentTimeMillis();
         cacheService.putResult("table", key,
-                "value1", 0L, Instant.now().getEpochSecond() - 1, 0);
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, Instant.now().getEpochSecond() - 1, 0);
 
         Optional<CacheEntryWrapper> result = cacheService.getResult("table", key);
-        assertEquals("value1", result.get().getCacheEntry().getResult());
+        assertFalse(result.isPresent());
 
         cacheService.purge();
 
         result = cacheService.getResult("table", key);
         assertFalse(result.isPresent());
     }
+
+    @Test
+    public void purgeKeepsEntriesNotExpired() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        cacheService.putResult("table", key + "expired",
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, Instant.now().getEpochSecond() - 1, 0);
+        cacheService.putResult("table", key + "valid",
+                "value2".getBytes(StandardCharsets.UTF_8), 0L, Instant.now().getEpochSecond() + 60, 0);
+        cacheService.putResult("table", key + "forever",
+                "value3".getBytes(StandardCharsets.UTF_8), 0L, 0L, 0);
+
+        cacheService.purge();
+
+        assertFalse(cacheService.getResult("table", key + "expired").isPresent());
+        assertEquals("value2", new String(cacheService.getResult("table", key + "valid").get().getCacheEntry().getResult(), StandardCharsets.UTF_8));
+        assertEquals("value3", new String(cacheService.getResult("table", key + "forever").get().getCacheEntry().getResult(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void entryExpiresWithoutPurge() throws Exception {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        cacheService.putResult("table", key,
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, Instant.now().getEpochSecond(), 0);
+
+        assertEquals("value1", new String(cacheService.getResult("table", key).get().getCacheEntry().getResult(), StandardCharsets.UTF_8));
+
+        Thread.sleep(1_100);
+
+        assertFalse(cacheService.getResult("table", key).isPresent());
+    }
+
+    @Test
+    public void concurrentReadsAreAllCounted() throws Exception {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        cacheService.putResult("table", key,
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, 0L, 20);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Optional<CacheEntryWrapper>>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit(() -> cacheService.getResult("table", key)));
+        }
+        for (Future<Optional<CacheEntryWrapper>> result : results) {
+            assertFalse(result.get().get().isStale());
+        }
+        executor.shutdown();
+
+        assertTrue(cacheService.getResult("table", key).get().isStale());
+    }
+
+    @Test
+    public void readCountsSurviveHotTierEviction() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        CacheKey cacheKey = new CacheKey("table", key);
+        cacheService.putResult("table", key,
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, 0L, 2);
+
+        assertFalse(cacheService.getResult("table", key).get().isStale());
+
+        // the count is still pending when the entry is loaded again
+        hotCache.invalidate(cacheKey);
+        assertFalse(cacheService.getResult("table", key).get().isStale());
+
+        countAggregator.flush();
+        hotCache.invalidate(cacheKey);
+        assertTrue(cacheService.getResult("table", key).get().isStale());
+    }
+
+    @Test
+    public void refreshAheadLeasedToOneCaller() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        cacheService.putResult("table", key,
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, 0L, 10);
+
+        for (int i = 0; i < 8; i++) {
+            assertFalse(cacheService.getResult("table", key).get().isRefresh());
+        }
+        CacheEntryWrapper leased = cacheService.getResult("table", key).get();
+        assertTrue(leased.isRefresh());
+        assertFalse(leased.isStale());
+
+        CacheEntryWrapper other = cacheService.getResult("table", key).get();
+        assertFalse(other.isRefresh());
+        assertEquals("value1", new String(other.getCacheEntry().getResult(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void putWithOutdatedLeaseDropped() {
+        String key = "key" + Math.random() + System.currentTimeMillis();
+        cacheService.putResult("table", key,
+                "value1".getBytes(StandardCharsets.UTF_8), 0L, 0L, 1);
+        long refreshToken = cacheService.getResult("table", key).get().getRefreshToken();
+
+        cacheService.invalidate("table", key);
+        cacheService.putResults(Collections.singletonList(new CachePutEntry()
+                .setTable("table")
+                .setKey(key)
+                .setValue("value2".getBytes(StandardCharsets.UTF_8))
+                .setRefreshAfterDate(0L)
+                .setPurgeAfterDate(0L)
+                .setRefreshAfterCount(1)
+                .setRefreshToken(refreshToken)));
+
+        assertFalse(cacheService.getResult("table", key).isPresent());
+    }
 }
@@ -0,0 +1,71 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.bi.messages.CacheLoaderServiceGrpc;
+import com.flair.bi.messages.LoadCacheRequest;
+import com.flair.bi.messages.LoadCacheResponse;
+import com.flair.bi.messages.PutCacheRequest;
+import com.flair.caching.flaircaching.dto.CachePutEntry;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GrpcCacheLoaderTest {
+
+    private Server server;
+    private GrpcCacheLoader cacheLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new CacheLoaderServiceGrpc.CacheLoaderServiceImplBase() {
+                    @Override
+                    public void loadCache(LoadCacheRequest request, StreamObserver<LoadCacheResponse> responseObserver) {
+                        LoadCacheResponse.Builder response = LoadCacheResponse.newBuilder();
+                        if (request.getKey().equals("known")) {
+                            response.setEntry(PutCacheRequest.newBuilder()
+                                    .setValue("value of " + request.getTable())
+                                    .setRefreshAfterDate(10L)
+                                    .setPurgeAfterDate(20L)
+                                    .setRefreshAfterCount(3));
+                        }
+                        responseObserver.onNext(response.build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        cacheLoader = new GrpcCacheLoader(InProcessChannelBuilder.forName(name).directExecutor().build(), 1000);
+    }
+
+    @After
+    public void tearDown() {
+        cacheLoader.shutdown();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void load() {
+        CachePutEntry putEntry = cacheLoader.load("table", "known");
+
+        assertEquals("value of table", new String(putEntry.getValue(), StandardCharsets.UTF_8));
+        assertEquals(10L, (long) putEntry.getRefreshAfterDate());
+        assertEquals(20L, (long) putEntry.getPurgeAfterDate());
+        assertEquals(3, (int) putEntry.getRefreshAfterCount());
+    }
+
+    @Test
+    public void loadNothing() {
+        assertNull(cacheLoader.load("table", "unknown"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import com.flair.caching.flaircaching.repositories.CacheEntry;
+import com.flair.caching.flaircaching.repositories.CacheEntryResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class HotCacheTest {
+
+    private final HotCache hotCache = new HotCache(new CacheProperties(), new SimpleMeterRegistry());
+    private final CacheKey cacheKey = new CacheKey("table", "key");
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void getCachesLoadedEntry() {
+        hotCache.get(cacheKey, this::load);
+        hotCache.get(cacheKey, this::load);
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void getDoesNotCacheEntryLoadedBeforeInvalidation() {
+        HotCacheEntry loaded = hotCache.get(cacheKey, it -> {
+            CacheEntryResult result = load(it);
+            invalidateConcurrently("table");
+            return result;
+        });
+        assertEquals("value 1", result(loaded));
+
+        assertEquals("value 2", result(hotCache.get(cacheKey, this::load)));
+        assertEquals("value 2", result(hotCache.get(cacheKey, this::load)));
+    }
+
+    @Test
+    public void getAllDoesNotCacheEntriesLoadedBeforeInvalidation() {
+        Map<CacheKey, HotCacheEntry> loaded = hotCache.getAll(Collections.singleton(cacheKey), keys -> {
+            CacheEntryResult result = load(cacheKey);
+            invalidateConcurrently("table");
+            return Collections.singletonMap(cacheKey, result);
+        });
+        assertEquals("value 1", result(loaded.get(cacheKey)));
+
+        assertEquals("value 2", result(hotCache.get(cacheKey, this::load)));
+    }
+
+    @Test
+    public void invalidationOfOtherTableKeepsEntry() {
+        hotCache.get(cacheKey, it -> {
+            CacheEntryResult result = load(it);
+            invalidateConcurrently("other");
+            return result;
+        });
+
+        assertEquals("value 1", result(hotCache.get(cacheKey, this::load)));
+    }
+
+    @Test
+    public void putDoesNotCacheEntryWrittenBeforeInvalidation() {
+        long generation = hotCache.getGeneration("table");
+        hotCache.invalidatePrefix("table", "");
+        hotCache.put(cacheKey, entry("put"), generation);
+
+        assertEquals("value 1", result(hotCache.get(cacheKey, this::load)));
+
+        hotCache.put(cacheKey, entry("put"), hotCache.getGeneration("table"));
+        assertEquals("put", result(hotCache.get(cacheKey, this::load)));
+    }
+
+    /**
+     * Invalidates from another thread, as an invalidation racing the load would.
+     */
+    private void invalidateConcurrently(String table) {
+        CompletableFuture.runAsync(() -> hotCache.invalidatePrefix(table, "")).join();
+    }
+
+    private CacheEntryResult load(CacheKey key) {
+        return new CacheEntryResult().setCacheEntry(entry("value " + loads.incrementAndGet()));
+    }
+
+    private static CacheEntry entry(String value) {
+        return new CacheEntry()
+                .setResult(value.getBytes(StandardCharsets.UTF_8))
+                .setRocksDbKey("table.key");
+    }
+
+    private static String result(HotCacheEntry hotCacheEntry) {
+        return new String(hotCacheEntry.getCacheEntry().getResult(), StandardCharsets.UTF_8);
+    }
+}
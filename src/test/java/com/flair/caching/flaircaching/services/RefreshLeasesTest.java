@@ -0,0 +1,78 @@
+package com.flair.caching.flaircaching.services;
+
+import com.flair.caching.flaircaching.config.CacheProperties;
+import com.flair.caching.flaircaching.dto.CacheKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RefreshLeasesTest {
+
+    private final CacheProperties cacheProperties = new CacheProperties();
+    private final CacheKey cacheKey = new CacheKey("table", "key");
+
+    @Test
+    public void leaseHeldByOneCaller() {
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+
+        Long token = refreshLeases.acquire(cacheKey);
+        assertNotNull(token);
+        assertNull(refreshLeases.acquire(cacheKey));
+
+        assertTrue(refreshLeases.complete(cacheKey, token));
+        assertNotNull(refreshLeases.acquire(cacheKey));
+    }
+
+    @Test
+    public void putAcceptedAfterLeaseExpired() throws Exception {
+        cacheProperties.getRefresh().setLeaseMillis(1);
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+
+        Long token = refreshLeases.acquire(cacheKey);
+        Thread.sleep(20);
+
+        assertTrue(refreshLeases.complete(cacheKey, token));
+    }
+
+    @Test
+    public void putRejectedAfterLeaseReplaced() throws Exception {
+        cacheProperties.getRefresh().setLeaseMillis(500);
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+
+        Long expired = refreshLeases.acquire(cacheKey);
+        Thread.sleep(600);
+        Long token = refreshLeases.acquire(cacheKey);
+        assertNotNull(token);
+
+        assertFalse(refreshLeases.complete(cacheKey, expired));
+        assertTrue(refreshLeases.complete(cacheKey, token));
+    }
+
+    @Test
+    public void putRejectedAfterInvalidation() throws Exception {
+        cacheProperties.getRefresh().setLeaseMillis(1);
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+
+        Long token = refreshLeases.acquire(cacheKey);
+        Long otherTable = refreshLeases.acquire(new CacheKey("other", "key"));
+        Thread.sleep(20);
+        refreshLeases.releasePrefix("table", "");
+
+        assertFalse(refreshLeases.complete(cacheKey, token));
+        assertTrue(refreshLeases.complete(new CacheKey("other", "key"), otherTable));
+    }
+
+    @Test
+    public void putRejectedAfterInvalidationOfHeldLease() {
+        RefreshLeases refreshLeases = new RefreshLeases(cacheProperties, new SimpleMeterRegistry());
+
+        Long token = refreshLeases.acquire(cacheKey);
+        refreshLeases.releasePrefix("table", "k");
+
+        assertFalse(refreshLeases.complete(cacheKey, token));
+    }
+}
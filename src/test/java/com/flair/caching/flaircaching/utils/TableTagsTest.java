@@ -0,0 +1,27 @@
+package com.flair.caching.flaircaching.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TableTagsTest {
+
+    private final TableTags tableTags = new TableTags(2);
+
+    @Test
+    public void tagsFirstTables() {
+        assertEquals("a", tableTags.get("a"));
+        assertEquals("b", tableTags.get("b"));
+        assertEquals("other", tableTags.get("c"));
+        assertEquals("a", tableTags.get("a"));
+        assertEquals("b", tableTags.get("b"));
+    }
+
+    @Test
+    public void tagsEmptyTableInvalid() {
+        assertEquals("invalid", tableTags.get(""));
+        assertEquals("invalid", tableTags.get(null));
+        assertEquals("a", tableTags.get("a"));
+        assertEquals("b", tableTags.get("b"));
+    }
+}